@@ -16,9 +16,19 @@ public class Constants {
     public static final String TFS_PROJECT_NAME = "custom.com.microsoft.teamfoundation.bamboo.configuration.project";
     public static final String TFS_BUILD_DEFINITION = "custom.com.microsoft.teamfoundation.bamboo.configuration.builddefinition";
 
+    /*
+     * Resolved from the names above when the configuration is saved
+     */
+    public static final String TFS_PROJECT_GUID = "custom.com.microsoft.teamfoundation.bamboo.configuration.projectId";
+    public static final String TFS_BUILD_DEFINITION_ID = "custom.com.microsoft.teamfoundation.bamboo.configuration.builddefinitionId";
+
     /*
      * TFS Build contants
      */
     public static final String TFS_BUILD_ID = "com.microsoft.teamfoundation.bamboo.tfs_build_id";
+    public static final String TFS_PROJECT_ID = "com.microsoft.teamfoundation.bamboo.tfs_project_id";
+    public static final String TFS_PLAN_ID = "com.microsoft.teamfoundation.bamboo.tfs_plan_id";
+    public static final String TFS_TIMELINE_ID = "com.microsoft.teamfoundation.bamboo.tfs_timeline_id";
+    public static final String TFS_JOB_RECORD_ID = "com.microsoft.teamfoundation.bamboo.tfs_job_record_id";
     public static final String TFS_TASK_ID = "com.microsoft.teamfoundation.bamboo.tfs_task_id";
 }
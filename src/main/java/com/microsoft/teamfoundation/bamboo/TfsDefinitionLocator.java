@@ -0,0 +1,66 @@
+package com.microsoft.teamfoundation.bamboo;
+
+import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
+import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
+import com.microsoft.teamfoundation.plugin.impl.TfsClient;
+import com.microsoft.teamfoundation.plugin.impl.TfsMetadataCache;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Locates the TFS team project and build definition a plan reports to.
+ *
+ * Names are resolved to IDs when the plan configuration is saved, chain runs then build the references
+ * from the stored IDs and only go back to the names when TFS no longer knows those IDs.
+ */
+public class TfsDefinitionLocator {
+
+    private TfsDefinitionLocator() {
+    }
+
+    public static TeamProjectReference findProject(TfsClient tfsClient, String projectName) {
+        TeamProjectReference projectReference = TfsMetadataCache.forClient(tfsClient).getProject(tfsClient, projectName);
+        if (projectReference == null) {
+            throw new RuntimeException("Failed to locate project " + projectName);
+        }
+
+        return projectReference;
+    }
+
+    public static DefinitionReference findDefinition(TfsClient tfsClient, TeamProjectReference projectReference, String buildDefinitionName) {
+        List<DefinitionReference> references = TfsMetadataCache.forClient(tfsClient).getDefinitions(tfsClient, projectReference.getId());
+        if (references != null) {
+            for (DefinitionReference ref : references) {
+                if (ref.getName().equals(buildDefinitionName)) {
+                    return ref;
+                }
+            }
+        }
+
+        throw new RuntimeException("Failed to locate build definition " + buildDefinitionName);
+    }
+
+    /**
+     * Build a project reference from a stored ID, without asking TFS
+     */
+    public static TeamProjectReference projectReference(String projectId, String projectName) {
+        TeamProjectReference projectReference = new TeamProjectReference();
+        projectReference.setId(UUID.fromString(projectId));
+        projectReference.setName(projectName);
+
+        return projectReference;
+    }
+
+    /**
+     * Build a build definition reference from a stored ID, without asking TFS
+     */
+    public static DefinitionReference definitionReference(String definitionId, String buildDefinitionName, TeamProjectReference projectReference) {
+        DefinitionReference definitionReference = new DefinitionReference();
+        definitionReference.setId(Integer.parseInt(definitionId));
+        definitionReference.setName(buildDefinitionName);
+        definitionReference.setProject(projectReference);
+
+        return definitionReference;
+    }
+}
@@ -4,15 +4,20 @@ import com.atlassian.bamboo.build.BuildLoggerManager;
 import com.atlassian.bamboo.security.EncryptionService;
 import com.microsoft.teamfoundation.bamboo.BambooSecret;
 import com.microsoft.teamfoundation.bamboo.Constants;
+import com.microsoft.teamfoundation.plugin.AsyncTfsBuildFacadeFactory;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
 import com.microsoft.teamfoundation.plugin.TfsBuildFacadeFactory;
 import com.microsoft.teamfoundation.plugin.TfsClientFactory;
 import com.microsoft.teamfoundation.plugin.TfsSecret;
+import com.microsoft.teamfoundation.plugin.impl.AsyncTfsBuildFacadeFactoryImpl;
 import com.microsoft.teamfoundation.plugin.impl.TfsBuildFacadeFactoryImpl;
 import com.microsoft.teamfoundation.plugin.impl.TfsClient;
 import com.microsoft.teamfoundation.plugin.impl.TfsClientFactoryImpl;
+import org.apache.commons.lang3.StringUtils;
 
 import java.net.URISyntaxException;
 import java.util.Map;
+import java.util.UUID;
 
 /**
  * Created by yacao on 4/30/2015.
@@ -23,10 +28,15 @@ public abstract class TfsBaseAction {
 
     private TfsBuildFacadeFactory tfsBuildFacadeFactory;
 
+    private AsyncTfsBuildFacadeFactory asyncTfsBuildFacadeFactory;
+
     private TfsClientFactory tfsClientFactory;
 
     private BuildLoggerManager buildLoggerManager;
 
+    /**
+     * Get the shared client for the plan's TFS server, leased to the caller who has to release() it
+     */
     protected TfsClient getTfsClient(Map<String, String> configurations) throws URISyntaxException{
         String serverUrl = configurations.get(Constants.TFS_SERVER_URL);
         String username = configurations.get(Constants.TFS_USERNAME);
@@ -41,6 +51,28 @@ public abstract class TfsBaseAction {
         return tfsClient;
     }
 
+    /**
+     * Read the coordinates the pre chain action published for this job
+     *
+     * @return coordinates, or null if they are incomplete, e.g. for jobs started by an older version of this plugin
+     */
+    protected TfsBuildCoordinates getTfsBuildCoordinates(Map<String, String> customBuildData) {
+        String tfsBuildId = customBuildData.get(Constants.TFS_BUILD_ID);
+        String projectId = customBuildData.get(Constants.TFS_PROJECT_ID);
+        String planId = customBuildData.get(Constants.TFS_PLAN_ID);
+        String timelineId = customBuildData.get(Constants.TFS_TIMELINE_ID);
+        String jobRecordId = customBuildData.get(Constants.TFS_JOB_RECORD_ID);
+
+        for (String id : new String[] { tfsBuildId, projectId, planId, timelineId, jobRecordId }) {
+            if (StringUtils.isBlank(id)) {
+                return null;
+            }
+        }
+
+        return new TfsBuildCoordinates(Integer.parseInt(tfsBuildId), UUID.fromString(projectId), UUID.fromString(planId),
+                UUID.fromString(timelineId), UUID.fromString(jobRecordId));
+    }
+
     // this will be spring DI'ed
     public EncryptionService getEncryptionService() {
         return encryptionService;
@@ -59,6 +91,13 @@ public abstract class TfsBaseAction {
         return tfsBuildFacadeFactory;
     }
 
+    public synchronized AsyncTfsBuildFacadeFactory getAsyncTfsBuildFacadeFactory() {
+        if (this.asyncTfsBuildFacadeFactory == null) {
+            this.asyncTfsBuildFacadeFactory = new AsyncTfsBuildFacadeFactoryImpl(getTfsBuildFacadeFactory());
+        }
+        return asyncTfsBuildFacadeFactory;
+    }
+
     public synchronized TfsClientFactory getTfsClientFactory() {
         if(this.tfsClientFactory == null) {
             this.tfsClientFactory = new TfsClientFactoryImpl();
@@ -75,6 +114,10 @@ public abstract class TfsBaseAction {
         this.tfsBuildFacadeFactory = tfsBuildFacadeFactory;
     }
 
+    public void setAsyncTfsBuildFacadeFactory(AsyncTfsBuildFacadeFactory asyncTfsBuildFacadeFactory) {
+        this.asyncTfsBuildFacadeFactory = asyncTfsBuildFacadeFactory;
+    }
+
     public void setTfsClientFactory(TfsClientFactory tfsClientFactory) {
         this.tfsClientFactory = tfsClientFactory;
     }
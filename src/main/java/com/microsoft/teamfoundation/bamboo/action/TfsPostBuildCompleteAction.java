@@ -9,17 +9,23 @@ import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.Date;
 import java.util.Map;
 import java.util.UUID;
 
 import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
 import com.microsoft.teamfoundation.bamboo.Constants;
+import com.microsoft.teamfoundation.plugin.AsyncTfsBuildFacade;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
 import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
+import com.microsoft.teamfoundation.plugin.impl.ConsoleLogTailer;
 import com.microsoft.teamfoundation.plugin.impl.TfsClient;
+import com.microsoft.teamfoundation.plugin.impl.TfsExecutors;
+import com.microsoft.teamfoundation.plugin.impl.TfsOutbox;
+import com.microsoft.teamfoundation.plugin.impl.TfsReporter;
 
 /**
  * Created by yacao on 4/30/2015.
@@ -48,22 +54,81 @@ public class TfsPostBuildCompleteAction extends TfsBaseAction implements CustomP
             return buildContext;
         }
 
+        // the whole log is uploaded when the result is reported, no need to keep following it
+        ConsoleLogTailer.stop(buildContext.getResultKey().getKey());
+
+        finishTaskOnTfs(planLevelConfigs);
+
+        return buildContext;
+    }
+
+    private void finishTaskOnTfs(final Map<String, String> planLevelConfigs) {
         final Map<String, String> customBuildData = this.buildContext.getCurrentResult().getCustomBuildData();
         String tfsBuildIdStr = customBuildData.get(Constants.TFS_BUILD_ID);
         String tfsTaskIdStr = customBuildData.get(Constants.TFS_TASK_ID);
-        TfsClient tfsClient = getTfsClient(planLevelConfigs);
 
         if (StringUtils.isNotBlank(tfsBuildIdStr) && StringUtils.isNotBlank(tfsTaskIdStr)) {
-            int tfsBuildId = Integer.parseInt(tfsBuildIdStr);
-            UUID tfsTaskId = UUID.fromString(tfsTaskIdStr);
+            final int tfsBuildId = Integer.parseInt(tfsBuildIdStr);
+            final UUID tfsTaskId = UUID.fromString(tfsTaskIdStr);
+            final TaskResult result = getBuildResult();
+            final Date finishTime = new Date();
+            final TfsBuildCoordinates coordinates = getTfsBuildCoordinates(customBuildData);
+            final File logFile = new File(BuildLogUtils.getLogFileDirectory(buildContext.getEntityKey()),
+                    BuildLogUtils.getLogFileName(buildContext.getResultKey()));
+
+            // where the result is reported, nothing on Bamboo's thread has to talk to TFS
+            final String serverUrl = planLevelConfigs.get(Constants.TFS_SERVER_URL);
+            final String username = planLevelConfigs.get(Constants.TFS_USERNAME);
+
+            // the log can be large, Bamboo doesn't wait for it.  Reports still waiting when the agent shuts down
+            // are drained along with the plugin.
+            TfsReporter.report(tfsBuildId, "result of job " + buildContext.getResultKey().getKey(), new Runnable() {
+                @Override
+                public void run() {
+                    TfsClient tfsClient;
+                    try {
+                        tfsClient = getTfsClient(planLevelConfigs);
+                    } catch (URISyntaxException e) {
+                        // a malformed server url, there is nothing to keep the result for
+                        throw new IllegalStateException(e);
+                    } catch (RuntimeException e) {
+                        if (!TfsOutbox.isUnreachable(e)) {
+                            throw e;
+                        }
+                        TfsOutbox.appendTaskResult(serverUrl, username, tfsBuildId, coordinates, tfsTaskId, finishTime, result);
+                        return;
+                    }
+
+                    try {
+                        finishTaskOnTfs(tfsClient, tfsBuildId, coordinates, tfsTaskId, finishTime, result, logFile);
+                    } finally {
+                        tfsClient.release();
+                    }
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    // the result is kept, the log is not
+                    TfsOutbox.appendTaskResult(serverUrl, username, tfsBuildId, coordinates, tfsTaskId, finishTime, result);
+                }
+            });
+        }
+    }
 
-            TfsBuildFacade taskLevelFacadeOnTfs = getTfsBuildFacadeFactory().getTaskLevelFacadeOnTfs(tfsBuildId, tfsClient);
+    private void finishTaskOnTfs(TfsClient tfsClient, int tfsBuildId, TfsBuildCoordinates coordinates, UUID tfsTaskId,
+                                 Date finishTime, TaskResult result, File logFile) {
+        AsyncTfsBuildFacade taskLevelFacadeOnTfs = coordinates != null
+                ? getAsyncTfsBuildFacadeFactory().getTaskLevelFacadeOnTfs(coordinates, tfsClient)
+                : TfsExecutors.await(getAsyncTfsBuildFacadeFactory().getTaskLevelFacadeOnTfs(tfsBuildId, tfsClient));
 
-            taskLevelFacadeOnTfs.finishTaskRecord(tfsTaskId, new Date(), getBuildResult());
-            uploadLogs(taskLevelFacadeOnTfs, tfsTaskId);
+        try {
+            // queued behind the pre build action's start of the same record, a late start can't overwrite the result
+            TfsExecutors.await(taskLevelFacadeOnTfs.finishTaskRecord(tfsTaskId, finishTime, result));
+            uploadLogs(taskLevelFacadeOnTfs.getFacade(), tfsClient, tfsTaskId, logFile);
+        } finally {
+            // held by the pre build action, agents run many jobs
+            taskLevelFacadeOnTfs.getFacade().release();
         }
-
-        return buildContext;
     }
 
     private TaskResult getBuildResult() {
@@ -80,13 +145,16 @@ public class TfsPostBuildCompleteAction extends TfsBaseAction implements CustomP
         }
     }
 
-    private void uploadLogs(TfsBuildFacade tfsBuildFacade, UUID tfsTaskId) {
-        String logfile = BuildLogUtils.getLogFileName(buildContext.getResultKey());
-        File directory = BuildLogUtils.getLogFileDirectory(buildContext.getEntityKey());
+    private void uploadLogs(TfsBuildFacade tfsBuildFacade, TfsClient tfsClient, UUID tfsTaskId, File logFile) {
+        int tfsBuildId = tfsBuildFacade.getTfsBuildId();
+
+        // resume from what TFS already acknowledged if a previous attempt was interrupted
+        long offset = TfsOutbox.getUploadedLogOffset(tfsClient, tfsBuildId, tfsTaskId);
+
         try {
-            FileInputStream fis = new FileInputStream(new File(directory, logfile));
-            tfsBuildFacade.uploadTaskLog(tfsTaskId, fis);
-            fis.close();
+            tfsBuildFacade.uploadTaskLog(tfsTaskId, logFile, offset,
+                    TfsOutbox.getLogUploadCheckpoint(tfsClient, tfsBuildId, tfsTaskId));
+            TfsOutbox.clearLogUploadCheckpoint(tfsClient, tfsBuildId, tfsTaskId);
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
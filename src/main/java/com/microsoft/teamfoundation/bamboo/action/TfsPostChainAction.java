@@ -1,15 +1,18 @@
 package com.microsoft.teamfoundation.bamboo.action;
 
+import com.atlassian.bamboo.chains.BuildExecution;
 import com.atlassian.bamboo.chains.Chain;
 import com.atlassian.bamboo.chains.ChainExecution;
 import com.atlassian.bamboo.chains.ChainResultsSummary;
+import com.atlassian.bamboo.chains.StageExecution;
 import com.atlassian.bamboo.chains.plugins.PostChainAction;
-import com.atlassian.bamboo.security.EncryptionService;
 import com.microsoft.teamfoundation.bamboo.BambooPlanLevelBuild;
-import com.microsoft.teamfoundation.bamboo.BambooSecret;
 import com.microsoft.teamfoundation.bamboo.Constants;
 import com.microsoft.teamfoundation.plugin.*;
+import com.microsoft.teamfoundation.plugin.impl.ConsoleLogTailer;
 import com.microsoft.teamfoundation.plugin.impl.TfsClient;
+import com.microsoft.teamfoundation.plugin.impl.TfsOutbox;
+import com.microsoft.teamfoundation.plugin.impl.TfsReporter;
 import org.apache.log4j.Logger;
 
 import java.net.URISyntaxException;
@@ -24,7 +27,7 @@ public class TfsPostChainAction extends TfsBaseAction implements PostChainAction
 
     @Override
     public void execute(final Chain chain, final ChainResultsSummary chainResultsSummary, final ChainExecution chainExecution) throws InterruptedException, Exception {
-        Map<String, String> configurations = chain.getBuildDefinition().getCustomConfiguration();
+        final Map<String, String> configurations = chain.getBuildDefinition().getCustomConfiguration();
 
         // return immediately if the plugin is not enabled
         if (!Boolean.parseBoolean(configurations.get(Constants.TFS_PLUGIN_ENABLED))) {
@@ -37,10 +40,84 @@ public class TfsPostChainAction extends TfsBaseAction implements PostChainAction
             return;
         }
 
-        TfsClient tfsClient = getTfsClient(configurations);
+        // jobs that were aborted or lost their agent never stopped following their logs
+        ConsoleLogTailer.stopAll(tfsBuildId);
 
-        TfsBuildFacade tfsBuildFacade = getTfsBuildFacadeFactory().getBuildOnTfs(tfsBuildId, new BambooPlanLevelBuild(chain, chainExecution), tfsClient);
+        // where the build is reported, nothing on Bamboo's thread has to talk to TFS
+        final String serverUrl = configurations.get(Constants.TFS_SERVER_URL);
+        final String username = configurations.get(Constants.TFS_USERNAME);
+        final TfsBuildCoordinates coordinates = getTfsBuildCoordinates(chainExecution);
 
-        tfsBuildFacade.finishBuild();
+        final int buildId = tfsBuildId;
+        // the report is sent later, the chain's state has to be taken now
+        final ActualBuild actualBuild = new ActualBuildSnapshot(new BambooPlanLevelBuild(chain, chainExecution));
+
+        // runs after the reports of all jobs of this build, Bamboo doesn't wait for it
+        TfsReporter.report(buildId, "result of TFS build " + buildId, new Runnable() {
+            @Override
+            public void run() {
+                TfsClient reportingClient;
+                try {
+                    reportingClient = getTfsClient(configurations);
+                } catch (URISyntaxException e) {
+                    // a malformed server url, there is nothing to keep the result for
+                    throw new IllegalStateException(e);
+                } catch (RuntimeException e) {
+                    if (!TfsOutbox.isUnreachable(e)) {
+                        throw e;
+                    }
+                    appendFinishBuild(serverUrl, username, coordinates, buildId, actualBuild);
+                    return;
+                }
+
+                try {
+                    TfsBuildFacade tfsBuildFacade;
+                    try {
+                        tfsBuildFacade = coordinates != null
+                                ? getTfsBuildFacadeFactory().getBuildOnTfs(coordinates, actualBuild, reportingClient)
+                                : getTfsBuildFacadeFactory().getBuildOnTfs(buildId, actualBuild, reportingClient);
+                    } catch (RuntimeException e) {
+                        if (!TfsOutbox.isUnreachable(e)) {
+                            throw e;
+                        }
+                        // keep at least the build result, the outbox delivers it once TFS is back
+                        appendFinishBuild(serverUrl, username, coordinates, buildId, actualBuild);
+                        return;
+                    }
+
+                    tfsBuildFacade.finishBuild();
+                } finally {
+                    reportingClient.release();
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                appendFinishBuild(serverUrl, username, coordinates, buildId, actualBuild);
+            }
+        });
+    }
+
+    private static void appendFinishBuild(String serverUrl, String username, TfsBuildCoordinates coordinates, int buildId,
+                                          ActualBuild actualBuild) {
+        TfsOutbox.appendFinishBuild(serverUrl, username, buildId, coordinates != null ? coordinates.getProjectId() : null,
+                actualBuild.getFinishTime(), actualBuild.getBuildResult(), actualBuild.getBuildSourceCommit());
+    }
+
+    /*
+     * The pre chain action handed every job the same coordinates, any job that kept them will do
+     */
+    private TfsBuildCoordinates getTfsBuildCoordinates(ChainExecution chainExecution) {
+        for (StageExecution stageExecution : chainExecution.getStages()) {
+            for (BuildExecution buildExecution : stageExecution.getBuilds()) {
+                TfsBuildCoordinates coordinates = getTfsBuildCoordinates(
+                        buildExecution.getBuildContext().getCurrentResult().getCustomBuildData());
+                if (coordinates != null) {
+                    return coordinates;
+                }
+            }
+        }
+
+        return null;
     }
 }
@@ -2,26 +2,38 @@ package com.microsoft.teamfoundation.bamboo.action;
 
 import com.atlassian.bamboo.build.BuildExecutionManager;
 import com.atlassian.bamboo.build.CustomPreBuildAction;
+import com.atlassian.bamboo.build.logger.BuildLogUtils;
 import com.atlassian.bamboo.buildqueue.manager.AgentManager;
 import com.atlassian.bamboo.utils.error.ErrorCollection;
 import com.atlassian.bamboo.utils.error.SimpleErrorCollection;
 import com.atlassian.bamboo.v2.build.BuildContext;
 import com.atlassian.bamboo.ww2.actions.build.admin.create.BuildConfiguration;
 import com.microsoft.teamfoundation.bamboo.Constants;
-import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
+import com.microsoft.teamfoundation.plugin.AsyncTfsBuildFacade;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
+import com.microsoft.teamfoundation.plugin.TfsUnavailableException;
+import com.microsoft.teamfoundation.plugin.impl.ConsoleLogTailer;
+import com.microsoft.teamfoundation.plugin.impl.TfsBulkhead;
 import com.microsoft.teamfoundation.plugin.impl.TfsClient;
+import com.microsoft.teamfoundation.plugin.impl.TfsExecutors;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.net.URISyntaxException;
 import java.util.Date;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 /**
  * Created by yacao on 4/28/2015.
  */
 public class TfsPreBuildAction extends TfsBaseAction implements CustomPreBuildAction {
 
+    private static final Logger log = Logger.getLogger(TfsPreBuildAction.class);
+
     private BuildContext buildContext;
     private BuildExecutionManager buildExecutionManager;
     private AgentManager agentManager;
@@ -45,30 +57,73 @@ public class TfsPreBuildAction extends TfsBaseAction implements CustomPreBuildAc
             return buildContext;
         }
 
-        Map<String, String> planLevelConfigs = parentBuildContext.getBuildDefinition().getCustomConfiguration();
+        final Map<String, String> planLevelConfigs = parentBuildContext.getBuildDefinition().getCustomConfiguration();
         // return immediately if the plugin is not enabled
         if (!Boolean.parseBoolean(planLevelConfigs.get(Constants.TFS_PLUGIN_ENABLED))) {
             return buildContext;
         }
 
+        try {
+            // the post build action needs the task record, this can't be deferred
+            TfsBulkhead.call("starting job " + buildContext.getResultKey().getKey() + " on TFS", new Callable<Void>() {
+                @Override
+                public Void call() throws URISyntaxException {
+                    createTaskOnTfs(planLevelConfigs);
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            if (!TfsUnavailableException.isCausedBy(e)) {
+                throw e;
+            }
+            log.warn("TFS/VSO is unavailable, this job will not be reported: " + e.getMessage());
+        }
+
+        return buildContext;
+    }
+
+    private void createTaskOnTfs(Map<String, String> planLevelConfigs) throws URISyntaxException {
         TfsClient tfsClient = getTfsClient(planLevelConfigs);
+        try {
+            createTaskOnTfs(tfsClient);
+        } finally {
+            tfsClient.release();
+        }
+    }
 
+    private void createTaskOnTfs(TfsClient tfsClient) {
         final Map<String, String> customBuildData = this.buildContext.getCurrentResult().getCustomBuildData();
         String tfsBuildIdStr = customBuildData.get(Constants.TFS_BUILD_ID);
 
         if (StringUtils.isNotBlank(tfsBuildIdStr)) {
             int tfsBuildId = Integer.parseInt(tfsBuildIdStr);
 
-            TfsBuildFacade taskLevelFacadeOnTfs = getTfsBuildFacadeFactory().getTaskLevelFacadeOnTfs(tfsBuildId, tfsClient);
-
-            UUID taskId = taskLevelFacadeOnTfs.createTaskRecord(buildContext.getShortName());
-            customBuildData.put(Constants.TFS_TASK_ID, taskId.toString());
+            TfsBuildCoordinates coordinates = getTfsBuildCoordinates(customBuildData);
+            AsyncTfsBuildFacade taskLevelFacadeOnTfs = coordinates != null
+                    ? getAsyncTfsBuildFacadeFactory().getTaskLevelFacadeOnTfs(coordinates, tfsClient)
+                    : TfsExecutors.await(getAsyncTfsBuildFacadeFactory().getTaskLevelFacadeOnTfs(tfsBuildId, tfsClient));
+            // other jobs and the chain may share this JVM's state of the build, the post build action releases it
+            taskLevelFacadeOnTfs.getFacade().hold();
+
+            // the record is normally created at chain start, only jobs of older chains still need one
+            String tfsTaskIdStr = customBuildData.get(Constants.TFS_TASK_ID);
+            UUID taskId;
+            if (StringUtils.isNotBlank(tfsTaskIdStr)) {
+                taskId = UUID.fromString(tfsTaskIdStr);
+            } else {
+                // the job needs the task id, but doesn't need to wait for the task to be marked as started
+                taskId = TfsExecutors.await(taskLevelFacadeOnTfs.createTaskRecord(buildContext.getPlanKey(), buildContext.getShortName()));
+                customBuildData.put(Constants.TFS_TASK_ID, taskId.toString());
+            }
 
             //TODO Maybe get the real start time?
             taskLevelFacadeOnTfs.startTaskRecord(taskId, new Date(), getExecutingAgentName());
-        }
 
-        return buildContext;
+            // follow the job's log while it runs, the post build action stops it
+            File logFile = new File(BuildLogUtils.getLogFileDirectory(buildContext.getEntityKey()),
+                    BuildLogUtils.getLogFileName(buildContext.getResultKey()));
+            ConsoleLogTailer.start(buildContext.getResultKey().getKey(), logFile, taskLevelFacadeOnTfs.getFacade(), tfsClient, taskId);
+        }
     }
 
     private String getExecutingAgentName() {
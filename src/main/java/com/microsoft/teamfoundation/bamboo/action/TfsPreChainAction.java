@@ -9,47 +9,125 @@ import com.atlassian.bamboo.utils.map.Key;
 import com.atlassian.bamboo.v2.build.BuildContext;
 import com.microsoft.teamfoundation.bamboo.BambooPlanLevelBuild;
 import com.microsoft.teamfoundation.bamboo.Constants;
+import com.microsoft.teamfoundation.bamboo.TfsDefinitionLocator;
+import com.microsoft.teamfoundation.build.webapi.model.AgentPoolQueue;
 import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
 import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
 import com.microsoft.teamfoundation.plugin.*;
+import com.microsoft.teamfoundation.plugin.impl.TfsBulkhead;
 import com.microsoft.teamfoundation.plugin.impl.TfsClient;
+import com.microsoft.teamfoundation.plugin.impl.TfsExecutors;
+import com.microsoft.teamfoundation.plugin.impl.TfsMetadataCache;
+import com.microsoft.vss.client.core.model.VssServiceException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.Logger;
 
 import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Created by yacao on 4/27/2015.
  */
 public class TfsPreChainAction extends TfsBaseAction implements PreChainAction {
 
+    private static final Logger log = Logger.getLogger(TfsPreChainAction.class);
+
     public static final Key<Integer> TFS_CONTEXT_KEY = Key.createKey(Integer.class);
 
     @Override
-    public void execute(final Chain chain, final ChainExecution chainExecution) throws InterruptedException, URISyntaxException {
-        Map<String, String> configurations = chain.getBuildDefinition().getCustomConfiguration();
+    public void execute(final Chain chain, final ChainExecution chainExecution) throws Exception {
+        final Map<String, String> configurations = chain.getBuildDefinition().getCustomConfiguration();
 
         // return immediately if the plugin is not enabled
         if (!Boolean.parseBoolean(configurations.get(Constants.TFS_PLUGIN_ENABLED))) {
             return;
         }
 
-        TfsClient tfsClient = getTfsClient(configurations);
+        try {
+            // the jobs need the TFS build before they start, this can't be deferred
+            TfsBulkhead.call("setting up the TFS build of " + chain.getBuildName(), new Callable<Void>() {
+                @Override
+                public Void call() throws URISyntaxException {
+                    setUpBuildOnTfs(chain, chainExecution, configurations);
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            if (!TfsUnavailableException.isCausedBy(e)) {
+                throw e;
+            }
+            log.warn("TFS/VSO is unavailable, this build will not be reported: " + e.getMessage());
+        }
+    }
 
-        String projectName = configurations.get(Constants.TFS_PROJECT_NAME);
-        TeamProjectReference projectReference = tfsClient.getProjectClient().getProject(projectName);
-        if (projectReference == null) {
-            throw new RuntimeException("Failed to locate project " + projectName);
+    private void setUpBuildOnTfs(final Chain chain, final ChainExecution chainExecution, Map<String, String> configurations) throws URISyntaxException {
+        TfsClient tfsClient = getTfsClient(configurations);
+        try {
+            setUpBuildOnTfs(chain, chainExecution, configurations, tfsClient);
+        } finally {
+            tfsClient.release();
         }
+    }
 
+    private void setUpBuildOnTfs(Chain chain, ChainExecution chainExecution, Map<String, String> configurations, TfsClient tfsClient) {
+        BambooPlanLevelBuild actualBuild = new BambooPlanLevelBuild(chain, chainExecution);
+
+        String projectName = configurations.get(Constants.TFS_PROJECT_NAME);
         String buildDefinitionName = configurations.get(Constants.TFS_BUILD_DEFINITION);
-        DefinitionReference definitionReference = getBuildDefinitionReference(tfsClient, projectReference, buildDefinitionName);
-        if (definitionReference == null) {
-            throw new RuntimeException("Failed to locate build definition " + buildDefinitionName);
+        String projectId = configurations.get(Constants.TFS_PROJECT_GUID);
+        String definitionId = configurations.get(Constants.TFS_BUILD_DEFINITION_ID);
+
+        // we need the queued build's id before the jobs start, marking it as started can happen in the background
+        AsyncTfsBuildFacade tfsBuildFacade = null;
+        if (StringUtils.isNotBlank(projectId) && StringUtils.isNotBlank(definitionId)) {
+            // IDs resolved when the configuration was saved, no lookups needed
+            TeamProjectReference projectReference = TfsDefinitionLocator.projectReference(projectId, projectName);
+            DefinitionReference definitionReference = TfsDefinitionLocator.definitionReference(definitionId, buildDefinitionName, projectReference);
+            try {
+                tfsBuildFacade = TfsExecutors.await(getAsyncTfsBuildFacadeFactory().createBuildOnTfs(projectReference,
+                        definitionReference, actualBuild, tfsClient));
+            } catch (VssServiceException e) {
+                log.info(String.format("Could not queue build definition %s by its saved id, resolving it by name: %s",
+                        buildDefinitionName, e.getMessage()));
+            }
         }
 
-        TfsBuildFacade tfsBuildFacade = getTfsBuildFacadeFactory().createBuildOnTfs(projectReference, definitionReference,
-                new BambooPlanLevelBuild(chain, chainExecution), tfsClient);
+        if (tfsBuildFacade == null) {
+            // the queues don't depend on the project or definition, have them cached by the time the build is queued
+            Future<List<AgentPoolQueue>> queues = prefetchQueues(tfsClient);
+
+            // with a saved project id the definition is looked up by name alongside the project, in case only
+            // the definition id went stale
+            Future<DefinitionReference> definition = null;
+            if (StringUtils.isNotBlank(projectId)) {
+                definition = findDefinition(tfsClient, TfsDefinitionLocator.projectReference(projectId, projectName), buildDefinitionName);
+            }
+
+            TeamProjectReference projectReference = TfsDefinitionLocator.findProject(tfsClient, projectName);
+            DefinitionReference definitionReference = null;
+            if (definition != null) {
+                try {
+                    DefinitionReference found = TfsExecutors.await(definition);
+                    if (projectReference.getId().toString().equals(projectId)) {
+                        definitionReference = found;
+                    }
+                } catch (RuntimeException e) {
+                    log.info("Could not locate build definition " + buildDefinitionName + " in the saved project: " + e.getMessage());
+                }
+            }
+            if (definitionReference == null) {
+                definitionReference = TfsDefinitionLocator.findDefinition(tfsClient, projectReference, buildDefinitionName);
+            }
+            TfsExecutors.await(queues);
+
+            tfsBuildFacade = TfsExecutors.await(getAsyncTfsBuildFacadeFactory().createBuildOnTfs(projectReference,
+                    definitionReference, actualBuild, tfsClient));
+        }
 
         tfsBuildFacade.startBuild();
 
@@ -57,28 +135,72 @@ public class TfsPreChainAction extends TfsBaseAction implements PreChainAction {
 
         // now I have to populate the build number to all jobs within my plan
         populateAllJobsWithTfsBuildId(chainExecution, tfsBuildFacade);
+        populateAllJobsWithTaskRecords(chainExecution, tfsBuildFacade);
     }
 
-    private void populateAllJobsWithTfsBuildId(ChainExecution chainExecution, TfsBuildFacade tfsBuildFacade) {
+    private Future<DefinitionReference> findDefinition(final TfsClient tfsClient, final TeamProjectReference projectReference,
+                                                       final String buildDefinitionName) {
+        // not awaited when the project can't be found, the client stays leased until the lookup is done
+        return TfsExecutors.fork(TfsClient.leased(tfsClient, new Callable<DefinitionReference>() {
+            @Override
+            public DefinitionReference call() {
+                return TfsDefinitionLocator.findDefinition(tfsClient, projectReference, buildDefinitionName);
+            }
+        }));
+    }
+
+    private Future<List<AgentPoolQueue>> prefetchQueues(final TfsClient tfsClient) {
+        return TfsExecutors.fork(TfsClient.leased(tfsClient, new Callable<List<AgentPoolQueue>>() {
+            @Override
+            public List<AgentPoolQueue> call() {
+                return TfsMetadataCache.forClient(tfsClient).getQueues(tfsClient);
+            }
+        }));
+    }
+
+    /*
+     * Create the records of every job in one go, so starting a job is a single status update
+     */
+    private void populateAllJobsWithTaskRecords(ChainExecution chainExecution, AsyncTfsBuildFacade tfsBuildFacade) {
+        Map<String, Map<String, String>> jobsByStage = new LinkedHashMap<String, Map<String, String>>();
         for (StageExecution stageExecution : chainExecution.getStages()) {
+            Map<String, String> jobs = new LinkedHashMap<String, String>();
             for (BuildExecution buildExecution : stageExecution.getBuilds()) {
                 BuildContext buildContext = buildExecution.getBuildContext();
-                buildContext.getCurrentResult().getCustomBuildData().put(Constants.TFS_BUILD_ID, String.valueOf(tfsBuildFacade.getTfsBuildId()));
-                buildContext.getCurrentResult().getCustomBuildData().put("StageName", buildExecution.getStageExecution().getName());
+                jobs.put(buildContext.getPlanKey(), buildContext.getShortName());
             }
+            jobsByStage.put(stageExecution.getName(), jobs);
         }
-    }
 
-    private DefinitionReference getBuildDefinitionReference(TfsClient tfsClient, TeamProjectReference projectReference, String buildDefinitionName) {
-        List<DefinitionReference> references = tfsClient.getBuildClient().getDefinitions(projectReference.getId());
-        for (DefinitionReference ref : references) {
-            if (ref.getName().equals(buildDefinitionName)) {
-                return ref;
+        Map<String, UUID> taskIds = tfsBuildFacade.getFacade().createTaskRecords(jobsByStage);
+
+        for (StageExecution stageExecution : chainExecution.getStages()) {
+            for (BuildExecution buildExecution : stageExecution.getBuilds()) {
+                BuildContext buildContext = buildExecution.getBuildContext();
+                UUID taskId = taskIds.get(buildContext.getPlanKey());
+                if (taskId != null) {
+                    buildContext.getCurrentResult().getCustomBuildData().put(Constants.TFS_TASK_ID, taskId.toString());
+                }
             }
         }
-
-        return null;
     }
 
+    private void populateAllJobsWithTfsBuildId(ChainExecution chainExecution, AsyncTfsBuildFacade tfsBuildFacade) {
+        // jobs get the full coordinates so they don't have to look the plan and timeline up again
+        TfsBuildCoordinates coordinates = tfsBuildFacade.getFacade().getCoordinates();
+
+        for (StageExecution stageExecution : chainExecution.getStages()) {
+            for (BuildExecution buildExecution : stageExecution.getBuilds()) {
+                BuildContext buildContext = buildExecution.getBuildContext();
+                Map<String, String> customBuildData = buildContext.getCurrentResult().getCustomBuildData();
+                customBuildData.put(Constants.TFS_BUILD_ID, String.valueOf(coordinates.getTfsBuildId()));
+                customBuildData.put(Constants.TFS_PROJECT_ID, coordinates.getProjectId().toString());
+                customBuildData.put(Constants.TFS_PLAN_ID, coordinates.getPlanId().toString());
+                customBuildData.put(Constants.TFS_TIMELINE_ID, coordinates.getTimelineId().toString());
+                customBuildData.put(Constants.TFS_JOB_RECORD_ID, coordinates.getJobRecordId().toString());
+                customBuildData.put("StageName", buildExecution.getStageExecution().getName());
+            }
+        }
+    }
 
 }
@@ -7,7 +7,15 @@ import com.atlassian.bamboo.utils.error.ErrorCollection;
 import com.atlassian.bamboo.v2.build.BaseBuildConfigurationAwarePlugin;
 import com.atlassian.bamboo.v2.build.configuration.MiscellaneousBuildConfigurationPlugin;
 import com.atlassian.bamboo.ww2.actions.build.admin.create.BuildConfiguration;
+import com.microsoft.teamfoundation.bamboo.BambooSecret;
 import com.microsoft.teamfoundation.bamboo.Constants;
+import com.microsoft.teamfoundation.bamboo.TfsDefinitionLocator;
+import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
+import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
+import com.microsoft.teamfoundation.plugin.TfsClientFactory;
+import com.microsoft.teamfoundation.plugin.impl.TfsClient;
+import com.microsoft.teamfoundation.plugin.impl.TfsClientFactoryImpl;
+import com.microsoft.teamfoundation.plugin.impl.TfsMetadataCache;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -28,6 +36,8 @@ public class TfsConfigurator extends BaseBuildConfigurationAwarePlugin
 
     private EncryptionService encryptionService;
 
+    private TfsClientFactory tfsClientFactory;
+
     @Override
     public boolean isApplicableTo(@NotNull Plan plan) {
         return plan instanceof TopLevelPlan;
@@ -48,6 +58,52 @@ public class TfsConfigurator extends BaseBuildConfigurationAwarePlugin
                     buildConfiguration.setProperty(Constants.TFS_PASSWORD, encryptionService.encrypt(clearTextPassword));
                 }
             }
+
+            resolveDefinition(buildConfiguration);
+        }
+    }
+
+    /*
+     * Resolve project and build definition names to IDs now, so chain runs don't have to look them up.
+     * Never fails the save, without IDs the chain falls back to resolving the names itself.
+     */
+    private void resolveDefinition(BuildConfiguration buildConfiguration) {
+        buildConfiguration.clearProperty(Constants.TFS_PROJECT_GUID);
+        buildConfiguration.clearProperty(Constants.TFS_BUILD_DEFINITION_ID);
+
+        String serverUrl = buildConfiguration.getString(Constants.TFS_SERVER_URL);
+        String username = buildConfiguration.getString(Constants.TFS_USERNAME);
+        String encryptedPassword = buildConfiguration.getString(Constants.TFS_PASSWORD);
+        String projectName = buildConfiguration.getString(Constants.TFS_PROJECT_NAME);
+        String buildDefinitionName = buildConfiguration.getString(Constants.TFS_BUILD_DEFINITION);
+
+        if (StringUtils.isBlank(serverUrl) || StringUtils.isBlank(encryptedPassword)
+                || StringUtils.isBlank(projectName) || StringUtils.isBlank(buildDefinitionName)) {
+            return;
+        }
+
+        try {
+            TfsClient tfsClient = getTfsClientFactory().getValidatedClient(serverUrl, username,
+                    new BambooSecret(encryptionService, encryptedPassword));
+            if (tfsClient == null) {
+                log.warn("Could not connect to " + serverUrl + ", project and build definition will be resolved at build time");
+                return;
+            }
+
+            try {
+                // the user may just have created or renamed them, don't trust what is cached
+                TfsMetadataCache.forClient(tfsClient).clear();
+
+                TeamProjectReference projectReference = TfsDefinitionLocator.findProject(tfsClient, projectName);
+                DefinitionReference definitionReference = TfsDefinitionLocator.findDefinition(tfsClient, projectReference, buildDefinitionName);
+
+                buildConfiguration.setProperty(Constants.TFS_PROJECT_GUID, projectReference.getId().toString());
+                buildConfiguration.setProperty(Constants.TFS_BUILD_DEFINITION_ID, String.valueOf(definitionReference.getId()));
+            } finally {
+                tfsClient.release();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to resolve project and build definition, they will be resolved at build time: " + e.getMessage());
         }
     }
 
@@ -80,8 +136,19 @@ public class TfsConfigurator extends BaseBuildConfigurationAwarePlugin
         }
     }
 
+    private synchronized TfsClientFactory getTfsClientFactory() {
+        if (this.tfsClientFactory == null) {
+            this.tfsClientFactory = new TfsClientFactoryImpl();
+        }
+        return tfsClientFactory;
+    }
+
     /* Spring setter */
     public void setEncryptionService(final EncryptionService encryptionService) {
         this.encryptionService = encryptionService;
     }
+
+    public void setTfsClientFactory(final TfsClientFactory tfsClientFactory) {
+        this.tfsClientFactory = tfsClientFactory;
+    }
 }
@@ -0,0 +1,67 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin;
+
+import com.microsoft.teamfoundation.build.webapi.model.BuildResult;
+
+import java.util.Date;
+
+/**
+ * The state of an ActualBuild at one moment, for reports that are sent later from another thread
+ */
+public class ActualBuildSnapshot implements ActualBuild {
+
+    private final String displayName;
+    private final BuildResult buildResult;
+    private final String buildSourceBranch;
+    private final String buildSourceCommit;
+    private final Date startTime;
+    private final Date finishTime;
+    private final String workerName;
+
+    public ActualBuildSnapshot(final ActualBuild actualBuild) {
+        this.displayName = actualBuild.getDisplayName();
+        this.buildResult = actualBuild.getBuildResult();
+        this.buildSourceBranch = actualBuild.getBuildSourceBranch();
+        this.buildSourceCommit = actualBuild.getBuildSourceCommit();
+        this.startTime = actualBuild.getStartTime();
+        this.finishTime = actualBuild.getFinishTime();
+        this.workerName = actualBuild.getWorkerName();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    @Override
+    public BuildResult getBuildResult() {
+        return buildResult;
+    }
+
+    @Override
+    public String getBuildSourceBranch() {
+        return buildSourceBranch;
+    }
+
+    @Override
+    public String getBuildSourceCommit() {
+        return buildSourceCommit;
+    }
+
+    @Override
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public Date getFinishTime() {
+        return finishTime;
+    }
+
+    @Override
+    public String getWorkerName() {
+        return workerName;
+    }
+}
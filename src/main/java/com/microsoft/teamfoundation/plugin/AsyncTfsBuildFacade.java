@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin;
+
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of the TfsBuildFacade.
+ *
+ * Operations on the same task record are executed in the order they are submitted, and so are the build
+ * level operations of the same TFS build.  Operations on different task records don't wait for each other,
+ * callers should only wait for the returned futures when they need the result.
+ */
+public interface AsyncTfsBuildFacade {
+
+    /**
+     * Get the Build container's id on TFS server
+     *
+     * @return build id on TFS
+     */
+    int getTfsBuildId();
+
+    /**
+     * Get the synchronous facade this facade delegates to
+     *
+     * @return TfsBuildFacade
+     */
+    TfsBuildFacade getFacade();
+
+    /**
+     * @see TfsBuildFacade#startBuild()
+     */
+    Future<Void> startBuild();
+
+    /**
+     * @see TfsBuildFacade#finishBuild()
+     */
+    Future<Void> finishBuild();
+
+    /**
+     * @see TfsBuildFacade#createTaskRecord(String, String)
+     */
+    Future<UUID> createTaskRecord(String taskKey, String taskName);
+
+    /**
+     * @see TfsBuildFacade#startTaskRecord(UUID, Date, String)
+     */
+    Future<Void> startTaskRecord(UUID taskId, Date startTime, String workerName);
+
+    /**
+     * @see TfsBuildFacade#finishTaskRecord(UUID, Date, TaskResult)
+     */
+    Future<Void> finishTaskRecord(UUID taskId, Date finishTime, TaskResult result);
+
+    /**
+     * @see TfsBuildFacade#postConsoleLog(List)
+     */
+    Future<Void> postConsoleLog(List<String> lines);
+}
@@ -0,0 +1,39 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin;
+
+import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
+import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
+import com.microsoft.teamfoundation.plugin.impl.TfsClient;
+
+import java.util.concurrent.Future;
+
+/**
+ * Asynchronous variant of the TfsBuildFacadeFactory, all REST calls are made on a dedicated executor
+ */
+public interface AsyncTfsBuildFacadeFactory {
+
+    /**
+     * @see TfsBuildFacadeFactory#createBuildOnTfs(TeamProjectReference, DefinitionReference, ActualBuild, TfsClient)
+     */
+    Future<AsyncTfsBuildFacade> createBuildOnTfs(final TeamProjectReference projectReference, final DefinitionReference buildDefinition,
+                                                 final ActualBuild actualBuild, final TfsClient tfsClient);
+
+    /**
+     * @see TfsBuildFacadeFactory#getBuildOnTfs(int, ActualBuild, TfsClient)
+     */
+    Future<AsyncTfsBuildFacade> getBuildOnTfs(final int tfsBuildId, final ActualBuild actualBuild, final TfsClient tfsClient);
+
+    /**
+     * @see TfsBuildFacadeFactory#getTaskLevelFacadeOnTfs(int, TfsClient)
+     */
+    Future<AsyncTfsBuildFacade> getTaskLevelFacadeOnTfs(final int tfsBuildId, final TfsClient tfsClient);
+
+    /**
+     * No calls are made to TFS to get this facade, so it is returned right away
+     *
+     * @see TfsBuildFacadeFactory#getTaskLevelFacadeOnTfs(TfsBuildCoordinates, TfsClient)
+     */
+    AsyncTfsBuildFacade getTaskLevelFacadeOnTfs(final TfsBuildCoordinates coordinates, final TfsClient tfsClient);
+}
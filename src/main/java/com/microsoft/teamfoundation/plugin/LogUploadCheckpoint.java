@@ -0,0 +1,17 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin;
+
+/**
+ * Records how much of a log file TFS has acknowledged, so an interrupted upload can resume from there
+ */
+public interface LogUploadCheckpoint {
+
+    /**
+     * Called after each segment of the log was appended on TFS
+     *
+     * @param offset offset in the log file up to which everything has been uploaded
+     */
+    void save(long offset);
+}
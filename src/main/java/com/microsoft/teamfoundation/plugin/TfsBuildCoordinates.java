@@ -0,0 +1,58 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin;
+
+import java.util.UUID;
+
+/**
+ * The IDs that locate a build container on TFS, down to the job record of the real build.
+ *
+ * Handing these to the jobs of a build lets them get a facade without asking TFS for the build,
+ * its orchestration plan and its timeline again.
+ */
+public final class TfsBuildCoordinates {
+
+    private final int tfsBuildId;
+    private final UUID projectId;
+    private final UUID planId;
+    private final UUID timelineId;
+    private final UUID jobRecordId;
+
+    public TfsBuildCoordinates(int tfsBuildId, UUID projectId, UUID planId, UUID timelineId, UUID jobRecordId) {
+        if (projectId == null || planId == null || timelineId == null || jobRecordId == null) {
+            throw new IllegalArgumentException("Arguments cannot be null");
+        }
+
+        this.tfsBuildId = tfsBuildId;
+        this.projectId = projectId;
+        this.planId = planId;
+        this.timelineId = timelineId;
+        this.jobRecordId = jobRecordId;
+    }
+
+    public int getTfsBuildId() {
+        return tfsBuildId;
+    }
+
+    public UUID getProjectId() {
+        return projectId;
+    }
+
+    public UUID getPlanId() {
+        return planId;
+    }
+
+    public UUID getTimelineId() {
+        return timelineId;
+    }
+
+    public UUID getJobRecordId() {
+        return jobRecordId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("build %d, plan %s, timeline %s, job record %s", tfsBuildId, planId, timelineId, jobRecordId);
+    }
+}
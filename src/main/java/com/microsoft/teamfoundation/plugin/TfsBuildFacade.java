@@ -5,10 +5,11 @@ package com.microsoft.teamfoundation.plugin;
 
 import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -25,6 +26,13 @@ public interface TfsBuildFacade {
      */
     int getTfsBuildId();
 
+    /**
+     * Get the IDs locating this build on TFS, jobs can use them to get a facade without asking TFS again
+     *
+     * @return coordinates of this build on TFS
+     */
+    TfsBuildCoordinates getCoordinates();
+
     /**
      * Set the TFS build container's (as well as the job record associated with this build) state to "In Progress"
      */
@@ -40,10 +48,23 @@ public interface TfsBuildFacade {
     /**
      * Create a task with the specified name on TFS side
      *
+     * The task id is derived from the task key, creating the same task again updates the same record
+     *
+     * @param taskKey key that identifies the task within this build, e.g. the job key
      * @param taskName
      * @return task id
      */
-    UUID createTaskRecord(String taskName);
+    UUID createTaskRecord(String taskKey, String taskName);
+
+    /**
+     * Create the task records of all stages up front, each stage gets a parent record of its own
+     *
+     * Logs for all records are allocated in parallel and the records are sent to TFS in one batch
+     *
+     * @param tasksByStage task names by task key, per stage name, in the order they should appear
+     * @return task ids by task key
+     */
+    Map<String, UUID> createTaskRecords(Map<String, Map<String, String>> tasksByStage);
 
     /**
      * Mark the specified task associated with this build to "In Progress" on TFS side
@@ -62,14 +83,6 @@ public interface TfsBuildFacade {
      */
     void finishTaskRecord(UUID taskId, Date finishTime, TaskResult result);
 
-    /**
-     * Upload logs associated with the overarching job
-     *
-     * @param logLines logs lines
-     * @throws IOException
-     */
-    void uploadJobLog(List<String> logLines) throws IOException;
-
     /**
      * Upload logs associated with a specific task
      *
@@ -80,12 +93,18 @@ public interface TfsBuildFacade {
     void uploadTaskLog(UUID taskId, List<String> logLines) throws IOException;
 
     /**
-     * Upload logs associated with a specific task
+     * Upload a log file associated with a specific task in segments, starting at the given offset
+     *
+     * Progress is reported to the checkpoint after every segment, so an interrupted upload can be
+     * resumed without sending the same content twice.
      *
      * @param taskId  unique id to identify the task
-     * @param io InputStream read the log from
+     * @param logFile file to read the log from
+     * @param offset offset in the file to start uploading from
+     * @param checkpoint receives the offset up to which the log has been uploaded, may be null
+     * @throws IOException
      */
-    void uploadTaskLog(UUID taskId, InputStream io);
+    void uploadTaskLog(UUID taskId, File logFile, long offset, LogUploadCheckpoint checkpoint) throws IOException;
 
     /**
      * Post specified lines to the TFS build console
@@ -93,4 +112,25 @@ public interface TfsBuildFacade {
      * @param lines lines that appear on TFS build console
      */
     void postConsoleLog(List<String> lines);
+
+    /**
+     * Post specified lines to the TFS build console of a specific task
+     *
+     * @param taskId  unique id to identify the task
+     * @param lines lines that appear on TFS build console
+     */
+    void postConsoleLog(UUID taskId, List<String> lines);
+
+    /**
+     * Keep what this JVM caches about the build until the matching release(), e.g. while a job runs
+     */
+    void hold();
+
+    /**
+     * Send the record updates still buffered for this build, and forget what this JVM cached about it once
+     * no job or build holds it anymore
+     *
+     * Call it when this JVM is done with the build, e.g. at the end of a job on a remote agent
+     */
+    void release();
 }
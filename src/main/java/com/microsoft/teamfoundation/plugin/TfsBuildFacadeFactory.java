@@ -45,6 +45,15 @@ public interface TfsBuildFacadeFactory {
      */
     TfsBuildFacade getBuildOnTfs(final int tfsBuildId, final ActualBuild actualBuild, final TfsClient tfsClient);
 
+    /**
+     * Get a TfsBuildFacade from the coordinates of a build that has been queued already.  No calls are made to TFS.
+     *
+     * @param coordinates
+     * @param actualBuild
+     * @param tfsClient
+     */
+    TfsBuildFacade getBuildOnTfs(final TfsBuildCoordinates coordinates, final ActualBuild actualBuild, final TfsClient tfsClient);
+
     /**
      * Get a TfsBuildFacade that can only interact with TFS on the tasks level. All job level functions will be no-ops
      *
@@ -55,4 +64,14 @@ public interface TfsBuildFacadeFactory {
      * @return TfsBuildFacade
      */
     TfsBuildFacade getTaskLevelFacadeOnTfs(final int tfsBuildId, final TfsClient tfsClient);
+
+    /**
+     * Get a TfsBuildFacade that can only interact with TFS on the tasks level, from the coordinates of a build
+     * that has been queued already.  No calls are made to TFS.
+     *
+     * @param coordinates
+     * @param tfsClient
+     * @return TfsBuildFacade
+     */
+    TfsBuildFacade getTaskLevelFacadeOnTfs(final TfsBuildCoordinates coordinates, final TfsClient tfsClient);
 }
@@ -15,10 +15,13 @@ public interface TfsClientFactory {
      *
      * If a valid client can not be constructed, will throw exception
      *
+     * The client is shared and leased to the caller, who has to release() it when done.  Work that goes on
+     * with the client after that, e.g. in the background, takes a lease() of its own.
+     *
      * @param url TFS collection level url
      * @param username
      * @param password
-     * @return new REST TFS client
+     * @return leased REST TFS client
      * @throws URISyntaxException
      */
     TfsClient getValidatedClient(String url, String username, TfsSecret password) throws URISyntaxException, VssServiceException;
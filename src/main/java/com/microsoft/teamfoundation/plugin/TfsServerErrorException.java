@@ -0,0 +1,28 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin;
+
+import javax.ws.rs.ProcessingException;
+
+/**
+ * Thrown when TFS kept failing a call with a server error (5xx) or kept throttling it (429)
+ *
+ * Like a call that could not reach TFS, the same call may well succeed later.
+ */
+public class TfsServerErrorException extends ProcessingException {
+
+    private final int status;
+
+    public TfsServerErrorException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * @return HTTP status of the last response
+     */
+    public int getStatus() {
+        return status;
+    }
+}
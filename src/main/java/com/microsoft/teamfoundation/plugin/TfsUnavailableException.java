@@ -0,0 +1,33 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin;
+
+import javax.ws.rs.ProcessingException;
+
+/**
+ * Thrown instead of calling TFS while the server is considered down
+ */
+public class TfsUnavailableException extends ProcessingException {
+
+    public TfsUnavailableException(String message) {
+        super(message);
+    }
+
+    /**
+     * Whether the throwable, or any of its causes, is a TfsUnavailableException
+     *
+     * @param t throwable to check
+     * @return true if TFS was not called because it is down
+     */
+    public static boolean isCausedBy(Throwable t) {
+        while (t != null) {
+            if (t instanceof TfsUnavailableException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,70 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
+import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
+import com.microsoft.teamfoundation.plugin.ActualBuild;
+import com.microsoft.teamfoundation.plugin.AsyncTfsBuildFacade;
+import com.microsoft.teamfoundation.plugin.AsyncTfsBuildFacadeFactory;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
+import com.microsoft.teamfoundation.plugin.TfsBuildFacadeFactory;
+
+/**
+ * Runs a TfsBuildFacadeFactory on the TFS executor.
+ *
+ * The client is leased until the background work has run, so the caller may release its own lease right away.
+ */
+public class AsyncTfsBuildFacadeFactoryImpl implements AsyncTfsBuildFacadeFactory {
+
+    private final TfsBuildFacadeFactory factory;
+
+    public AsyncTfsBuildFacadeFactoryImpl() {
+        this(new TfsBuildFacadeFactoryImpl());
+    }
+
+    public AsyncTfsBuildFacadeFactoryImpl(final TfsBuildFacadeFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Future<AsyncTfsBuildFacade> createBuildOnTfs(final TeamProjectReference projectReference, final DefinitionReference definitionReference,
+                                                        final ActualBuild actualBuild, final TfsClient tfsClient) {
+        return TfsExecutors.submit(TfsClient.leased(tfsClient, new Callable<AsyncTfsBuildFacade>() {
+            @Override
+            public AsyncTfsBuildFacade call() {
+                return new AsyncTfsBuildFacadeImpl(factory.createBuildOnTfs(projectReference, definitionReference, actualBuild, tfsClient), tfsClient);
+            }
+        }));
+    }
+
+    @Override
+    public Future<AsyncTfsBuildFacade> getBuildOnTfs(final int tfsBuildId, final ActualBuild actualBuild, final TfsClient tfsClient) {
+        return TfsExecutors.submitOrdered(tfsBuildId, TfsClient.leased(tfsClient, new Callable<AsyncTfsBuildFacade>() {
+            @Override
+            public AsyncTfsBuildFacade call() {
+                return new AsyncTfsBuildFacadeImpl(factory.getBuildOnTfs(tfsBuildId, actualBuild, tfsClient), tfsClient);
+            }
+        }));
+    }
+
+    @Override
+    public Future<AsyncTfsBuildFacade> getTaskLevelFacadeOnTfs(final int tfsBuildId, final TfsClient tfsClient) {
+        // only reads the build, jobs starting together must not queue up behind each other
+        return TfsExecutors.submit(TfsClient.leased(tfsClient, new Callable<AsyncTfsBuildFacade>() {
+            @Override
+            public AsyncTfsBuildFacade call() {
+                return new AsyncTfsBuildFacadeImpl(factory.getTaskLevelFacadeOnTfs(tfsBuildId, tfsClient), tfsClient);
+            }
+        }));
+    }
+
+    @Override
+    public AsyncTfsBuildFacade getTaskLevelFacadeOnTfs(final TfsBuildCoordinates coordinates, final TfsClient tfsClient) {
+        return new AsyncTfsBuildFacadeImpl(factory.getTaskLevelFacadeOnTfs(coordinates, tfsClient), tfsClient);
+    }
+}
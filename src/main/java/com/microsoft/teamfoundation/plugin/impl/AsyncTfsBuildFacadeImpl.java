@@ -0,0 +1,118 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
+import com.microsoft.teamfoundation.plugin.AsyncTfsBuildFacade;
+import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
+
+/**
+ * Runs the operations of a TfsBuildFacade on the TFS executor, ordered per task record and per TFS build
+ *
+ * Each operation holds a lease on the client from when it is submitted until it ran, the caller may
+ * release its own lease right after submitting.
+ */
+public class AsyncTfsBuildFacadeImpl implements AsyncTfsBuildFacade {
+
+    private final TfsBuildFacade facade;
+
+    private final TfsClient client;
+
+    public AsyncTfsBuildFacadeImpl(final TfsBuildFacade facade, final TfsClient client) {
+        this.facade = facade;
+        this.client = client;
+    }
+
+    @Override
+    public int getTfsBuildId() {
+        return facade.getTfsBuildId();
+    }
+
+    @Override
+    public TfsBuildFacade getFacade() {
+        return facade;
+    }
+
+    @Override
+    public Future<Void> startBuild() {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                facade.startBuild();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> finishBuild() {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                facade.finishBuild();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Future<UUID> createTaskRecord(final String taskKey, final String taskName) {
+        return submit(taskKey, new Callable<UUID>() {
+            @Override
+            public UUID call() {
+                return facade.createTaskRecord(taskKey, taskName);
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> startTaskRecord(final UUID taskId, final Date startTime, final String workerName) {
+        return submit(taskId, new Callable<Void>() {
+            @Override
+            public Void call() {
+                facade.startTaskRecord(taskId, startTime, workerName);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> finishTaskRecord(final UUID taskId, final Date finishTime, final TaskResult result) {
+        return submit(taskId, new Callable<Void>() {
+            @Override
+            public Void call() {
+                facade.finishTaskRecord(taskId, finishTime, result);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Future<Void> postConsoleLog(final List<String> lines) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                facade.postConsoleLog(lines);
+                return null;
+            }
+        });
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        return TfsExecutors.submitOrdered(facade.getTfsBuildId(), TfsClient.leased(client, task));
+    }
+
+    /*
+     * Updates of one task record depend on each other, those of different records don't
+     */
+    private <T> Future<T> submit(Object recordKey, Callable<T> task) {
+        return TfsExecutors.submitOrdered(facade.getTfsBuildId() + "/" + recordKey, TfsClient.leased(client, task));
+    }
+}
@@ -0,0 +1,124 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+
+/**
+ * Status, headers and body of a response, read off the wire once so it can be handed out many times.
+ */
+/* default */ class BufferedResponse {
+    private final Response.StatusType status;
+    private final MultivaluedMap<String, String> headers;
+    private final byte[] entity;
+
+    private BufferedResponse(Response.StatusType status, MultivaluedMap<String, String> headers, byte[] entity) {
+        this.status = status;
+        this.headers = headers;
+        this.entity = entity;
+    }
+
+    /**
+     * Read and close the response
+     */
+    /* default */ static BufferedResponse of(ClientResponse response) {
+        try {
+            byte[] entity = null;
+            if (response.hasEntity()) {
+                entity = readFully(response.getEntityStream());
+            }
+
+            return new BufferedResponse(response.getStatusInfo(),
+                    new MultivaluedHashMap<String, String>(response.getHeaders()), entity);
+        } catch (IOException e) {
+            throw new ProcessingException("Failed to read TFS response", e);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Read and close the response if its body is at most maxBytes long
+     *
+     * Bodies of unknown length are read only up to the limit.  If the body turns out to be longer, the
+     * response is left open with its stream still delivering the whole body, and null is returned.
+     */
+    /* default */ static BufferedResponse ofAtMost(ClientResponse response, int maxBytes) {
+        if (!response.hasEntity()) {
+            return of(response);
+        }
+
+        try {
+            InputStream in = response.getEntityStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while (out.size() <= maxBytes && (read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+
+            if (out.size() > maxBytes) {
+                // too big to keep, hand back what was read followed by the rest
+                response.setEntityStream(new SequenceInputStream(new ByteArrayInputStream(out.toByteArray()), in));
+                return null;
+            }
+
+            BufferedResponse buffered = new BufferedResponse(response.getStatusInfo(),
+                    new MultivaluedHashMap<String, String>(response.getHeaders()), out.toByteArray());
+            response.close();
+            return buffered;
+        } catch (IOException e) {
+            response.close();
+            throw new ProcessingException("Failed to read TFS response", e);
+        }
+    }
+
+    /* default */ int getStatus() {
+        return status.getStatusCode();
+    }
+
+    /* default */ String getHeaderString(String name) {
+        return headers.getFirst(name);
+    }
+
+    /* default */ int getLength() {
+        return entity != null ? entity.length : 0;
+    }
+
+    /**
+     * A new response for this request, with its own stream over the buffered body
+     */
+    /* default */ ClientResponse copyFor(ClientRequest request) {
+        ClientResponse copy = new ClientResponse(status, request);
+        copy.getHeaders().putAll(headers);
+        if (entity != null) {
+            copy.setEntityStream(new ByteArrayInputStream(entity));
+        }
+
+        return copy;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+}
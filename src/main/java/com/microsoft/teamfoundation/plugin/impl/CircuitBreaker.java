@@ -0,0 +1,101 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Per host circuit breaker for TFS calls.
+ *
+ * After a number of consecutive failures the circuit opens and calls fail fast.  Once the open period
+ * has passed a single probe call is let through, its outcome closes or re-opens the circuit.
+ */
+/* default */ class CircuitBreaker {
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public static final String CIRCUIT_FAILURE_THRESHOLD_PROPERTY = "circuit_failure_threshold";
+    public static final String CIRCUIT_OPEN_SECONDS_PROPERTY = "circuit_open_seconds";
+
+    private static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_CIRCUIT_OPEN_SECONDS = 30;
+
+    private static final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String host;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+
+    private CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    /* default */ static CircuitBreaker forHost(String host) {
+        CircuitBreaker breaker = breakers.get(host);
+        if (breaker == null) {
+            CircuitBreaker created = new CircuitBreaker(host);
+            breaker = breakers.putIfAbsent(host, created);
+            if (breaker == null) {
+                breaker = created;
+            }
+        }
+
+        return breaker;
+    }
+
+    /**
+     * Whether a call may go to the server now
+     */
+    /* default */ synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) {
+                    return false;
+                }
+                logger.info("Probing whether TFS at " + host + " is available again");
+                state = State.HALF_OPEN;
+                return true;
+            case HALF_OPEN:
+            default:
+                // only the probe may go through
+                return false;
+        }
+    }
+
+    /* default */ synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("TFS at " + host + " is available again");
+        }
+
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /* default */ synchronized void recordFailure() {
+        consecutiveFailures++;
+
+        int threshold = Integer.getInteger(CIRCUIT_FAILURE_THRESHOLD_PROPERTY, DEFAULT_CIRCUIT_FAILURE_THRESHOLD);
+        if (state == State.HALF_OPEN || consecutiveFailures >= threshold) {
+            if (state != State.OPEN) {
+                logger.warning("TFS at " + host + " is considered down, reporting is suspended");
+            }
+
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(
+                    Integer.getInteger(CIRCUIT_OPEN_SECONDS_PROPERTY, DEFAULT_CIRCUIT_OPEN_SECONDS));
+        }
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.Configuration;
+import javax.ws.rs.core.HttpHeaders;
+
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.client.spi.ConnectorProvider;
+
+/**
+ * Wraps the connector used by all TFS sub area clients so concurrent identical GETs share one call.
+ *
+ * When a stage fans out, every job asks for the same build, plan and timeline records at the same
+ * moment.  The first caller of a GET goes to TFS, callers asking for the same url and representation
+ * while it is in flight wait for it and get their own copy of the buffered response.  Nothing is kept
+ * once the call completes, this is not a cache.
+ *
+ * A GET never joins a call that went out before this client's last write to the same resource, it
+ * could return the state from before the write.  It goes to TFS on its own instead, and later callers
+ * join that one.
+ *
+ * Every TfsClient has its own connector, so calls made with different credentials are never shared.
+ */
+/* default */ class CoalescingConnectorProvider implements ConnectorProvider {
+
+    /*
+     * Writes older than the last this many resources written to are long done, no GET in flight predates them
+     */
+    private static final int MAX_TRACKED_WRITES = 1024;
+
+    private final ConnectorProvider delegate;
+
+    /* default */ CoalescingConnectorProvider(ConnectorProvider delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Connector getConnector(Client client, Configuration runtimeConfig) {
+        return new CoalescingConnector(delegate.getConnector(client, runtimeConfig));
+    }
+
+    private static class CoalescingConnector implements Connector {
+        private final Connector connector;
+
+        private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+        /*
+         * Sequence number of the last write to each resource, flights remember the sequence they started at
+         */
+        private final AtomicLong writeSequence = new AtomicLong();
+        private final Map<String, Long> lastWrites = Collections.synchronizedMap(
+                new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                        return size() > MAX_TRACKED_WRITES;
+                    }
+                });
+
+        CoalescingConnector(Connector connector) {
+            this.connector = connector;
+        }
+
+        @Override
+        public ClientResponse apply(ClientRequest request) {
+            // this is the outermost connector, every caller gets its response from here
+            ClientResponse response = coalesce(request);
+            ResponseStatus.record(response.getStatus());
+
+            return response;
+        }
+
+        private ClientResponse coalesce(ClientRequest request) {
+            // e.g. a PATCH of the build and a GET of it, or the timeline records with and without a change id
+            String resource = request.getUri().getPath();
+
+            if (!HttpMethod.GET.equals(request.getMethod())) {
+                try {
+                    return connector.apply(request);
+                } finally {
+                    // only a GET sent after the write completed is sure to see it
+                    lastWrites.put(resource, writeSequence.incrementAndGet());
+                }
+            }
+
+            // the api version is negotiated through the Accept header, it's part of what we ask for
+            String key = request.getUri() + "|" + request.getHeaderString(HttpHeaders.ACCEPT);
+
+            Flight flight = new Flight(writeSequence.get());
+            while (true) {
+                Flight leader = inFlight.putIfAbsent(key, flight);
+                if (leader == null) {
+                    break;
+                }
+
+                Long lastWrite = lastWrites.get(resource);
+                if (lastWrite == null || leader.writeSequence >= lastWrite) {
+                    return leader.await().copyFor(request);
+                }
+
+                // the leader may have read the resource before our write, let later callers join us instead
+                if (inFlight.replace(key, leader, flight)) {
+                    break;
+                }
+            }
+
+            try {
+                flight.complete(BufferedResponse.of(connector.apply(request)), null);
+            } catch (RuntimeException e) {
+                flight.complete(null, e);
+            } finally {
+                inFlight.remove(key, flight);
+            }
+
+            return flight.await().copyFor(request);
+        }
+
+        @Override
+        public Future<?> apply(ClientRequest request, AsyncConnectorCallback callback) {
+            return connector.apply(request, callback);
+        }
+
+        @Override
+        public String getName() {
+            return connector.getName();
+        }
+
+        @Override
+        public void close() {
+            connector.close();
+        }
+    }
+
+    /*
+     * A GET in progress, followers wait on it for the response or the failure of the leader
+     */
+    private static class Flight {
+        private final long writeSequence;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile BufferedResponse response;
+        private volatile RuntimeException failure;
+
+        Flight(long writeSequence) {
+            this.writeSequence = writeSequence;
+        }
+
+        void complete(BufferedResponse response, RuntimeException failure) {
+            this.response = response;
+            this.failure = failure;
+            done.countDown();
+        }
+
+        BufferedResponse await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingException("Interrupted while waiting for a shared TFS call", e);
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            return response;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.Configuration;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.client.spi.ConnectorProvider;
+
+/**
+ * Wraps the connector used by all TFS sub area clients with conditional GETs.
+ *
+ * Builds, timelines, definitions and projects are read over and over while they rarely change.  The
+ * last response of every GET that carried an ETag or Last-Modified header is kept, the next GET for
+ * the same url and representation asks with If-None-Match / If-Modified-Since, and a 304 is answered
+ * from the kept response.  Only small bodies are kept, and the least recently used urls go first once
+ * either the number of kept responses or their total size is over its limit.
+ *
+ * Every TfsClient has its own connector, so responses are never shared between credentials.
+ */
+/* default */ class ConditionalGetConnectorProvider implements ConnectorProvider {
+
+    public static final String CONDITIONAL_CACHE_MAX_ENTRIES_PROPERTY = "conditional_cache_max_entries";
+    public static final String CONDITIONAL_CACHE_MAX_BODY_BYTES_PROPERTY = "conditional_cache_max_body_bytes";
+    public static final String CONDITIONAL_CACHE_MAX_TOTAL_BYTES_PROPERTY = "conditional_cache_max_total_bytes";
+
+    private static final int DEFAULT_CONDITIONAL_CACHE_MAX_ENTRIES = 256;
+    private static final int DEFAULT_CONDITIONAL_CACHE_MAX_BODY_BYTES = 1024 * 1024;
+    private static final int DEFAULT_CONDITIONAL_CACHE_MAX_TOTAL_BYTES = 8 * 1024 * 1024;
+
+    private final ConnectorProvider delegate;
+
+    /* default */ ConditionalGetConnectorProvider(ConnectorProvider delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Connector getConnector(Client client, Configuration runtimeConfig) {
+        return new ConditionalGetConnector(delegate.getConnector(client, runtimeConfig));
+    }
+
+    private static class ConditionalGetConnector implements Connector {
+        private final Connector connector;
+
+        /*
+         * Least recently used first, guarded by itself
+         */
+        private final Map<String, BufferedResponse> validated = new LinkedHashMap<String, BufferedResponse>(16, 0.75f, true);
+        private long validatedBytes;
+
+        ConditionalGetConnector(Connector connector) {
+            this.connector = connector;
+        }
+
+        @Override
+        public ClientResponse apply(ClientRequest request) {
+            if (!HttpMethod.GET.equals(request.getMethod())) {
+                return connector.apply(request);
+            }
+
+            String key = request.getUri() + "|" + request.getHeaderString(HttpHeaders.ACCEPT);
+
+            BufferedResponse cached = get(key);
+            if (cached != null) {
+                String etag = cached.getHeaderString(HttpHeaders.ETAG);
+                String lastModified = cached.getHeaderString(HttpHeaders.LAST_MODIFIED);
+                if (etag != null) {
+                    request.getHeaders().putSingle(HttpHeaders.IF_NONE_MATCH, etag);
+                }
+                if (lastModified != null) {
+                    request.getHeaders().putSingle(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
+                }
+            }
+
+            ClientResponse response = connector.apply(request);
+
+            if (cached != null && response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                response.close();
+                return cached.copyFor(request);
+            }
+
+            if (response.getStatus() != Response.Status.OK.getStatusCode() || !isValidatable(response)) {
+                remove(key);
+                return response;
+            }
+
+            int maxBody = Integer.getInteger(CONDITIONAL_CACHE_MAX_BODY_BYTES_PROPERTY, DEFAULT_CONDITIONAL_CACHE_MAX_BODY_BYTES);
+            if (response.getLength() > maxBody) {
+                remove(key);
+                return response;
+            }
+
+            // without a Content-Length only read up to the limit, a longer body is streamed to the caller as usual
+            BufferedResponse buffered = BufferedResponse.ofAtMost(response, maxBody);
+            if (buffered == null) {
+                remove(key);
+                return response;
+            }
+
+            put(key, buffered);
+            return buffered.copyFor(request);
+        }
+
+        private BufferedResponse get(String key) {
+            synchronized (validated) {
+                return validated.get(key);
+            }
+        }
+
+        private void put(String key, BufferedResponse response) {
+            int maxEntries = Integer.getInteger(CONDITIONAL_CACHE_MAX_ENTRIES_PROPERTY, DEFAULT_CONDITIONAL_CACHE_MAX_ENTRIES);
+            long maxBytes = Integer.getInteger(CONDITIONAL_CACHE_MAX_TOTAL_BYTES_PROPERTY, DEFAULT_CONDITIONAL_CACHE_MAX_TOTAL_BYTES);
+
+            synchronized (validated) {
+                remove(key);
+                validated.put(key, response);
+                validatedBytes += response.getLength();
+
+                Iterator<BufferedResponse> eldest = validated.values().iterator();
+                while (eldest.hasNext() && (validated.size() > maxEntries || validatedBytes > maxBytes)) {
+                    validatedBytes -= eldest.next().getLength();
+                    eldest.remove();
+                }
+            }
+        }
+
+        private void remove(String key) {
+            synchronized (validated) {
+                BufferedResponse removed = validated.remove(key);
+                if (removed != null) {
+                    validatedBytes -= removed.getLength();
+                }
+            }
+        }
+
+        @Override
+        public Future<?> apply(ClientRequest request, AsyncConnectorCallback callback) {
+            return connector.apply(request, callback);
+        }
+
+        @Override
+        public String getName() {
+            return connector.getName();
+        }
+
+        @Override
+        public void close() {
+            synchronized (validated) {
+                validated.clear();
+                validatedBytes = 0;
+            }
+            connector.close();
+        }
+
+        private static boolean isValidatable(ClientResponse response) {
+            return response.getHeaderString(HttpHeaders.ETAG) != null
+                    || response.getHeaderString(HttpHeaders.LAST_MODIFIED) != null;
+        }
+    }
+}
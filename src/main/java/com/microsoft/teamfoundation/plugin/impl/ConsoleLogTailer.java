@@ -0,0 +1,245 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
+
+/**
+ * Follows a build log file while the build runs and posts new lines to the TFS build console.
+ *
+ * Every poll posts at most a bounded number of lines, the file itself is the buffer, so a chatty
+ * build only makes the console lag behind instead of flooding TFS.  No line is skipped, the console
+ * catches up once the build gets quieter, and the complete log is uploaded when the build finishes.
+ *
+ * A job that is aborted or whose agent dies never stops its tailer, so tailers also stop once their log
+ * has not grown for console_tail_max_idle_minutes, after console_tail_max_life_hours, and when the chain
+ * of their TFS build finishes.
+ */
+public class ConsoleLogTailer {
+    private static final Logger logger = Logger.getLogger(ConsoleLogTailer.class.getName());
+
+    public static final String CONSOLE_TAIL_INTERVAL_MS_PROPERTY = "console_tail_interval_ms";
+    public static final String CONSOLE_TAIL_MAX_LINES_PROPERTY = "console_tail_max_lines";
+    public static final String CONSOLE_TAIL_MAX_BYTES_PROPERTY = "console_tail_max_bytes";
+    public static final String CONSOLE_TAIL_MAX_IDLE_MINUTES_PROPERTY = "console_tail_max_idle_minutes";
+    public static final String CONSOLE_TAIL_MAX_LIFE_HOURS_PROPERTY = "console_tail_max_life_hours";
+
+    private static final int DEFAULT_CONSOLE_TAIL_INTERVAL_MS = 2000;
+    private static final int DEFAULT_CONSOLE_TAIL_MAX_LINES = 500;
+    private static final int DEFAULT_CONSOLE_TAIL_MAX_BYTES = 256 * 1024;
+    private static final int DEFAULT_CONSOLE_TAIL_MAX_IDLE_MINUTES = 30;
+    private static final int DEFAULT_CONSOLE_TAIL_MAX_LIFE_HOURS = 24;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentMap<String, ConsoleLogTailer> tailers = new ConcurrentHashMap<String, ConsoleLogTailer>();
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "tfs-console-tailer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String key;
+    private final File logFile;
+    private final TfsBuildFacade facade;
+    private final TfsClient client;
+    private final UUID taskId;
+    private final long startedAt;
+
+    private long offset;
+    private long lastGrowth;
+    private ScheduledFuture<?> polling;
+
+    private ConsoleLogTailer(String key, File logFile, TfsBuildFacade facade, TfsClient client, UUID taskId) {
+        this.key = key;
+        this.logFile = logFile;
+        this.facade = facade;
+        this.client = client;
+        this.taskId = taskId;
+        this.startedAt = System.currentTimeMillis();
+        this.lastGrowth = startedAt;
+    }
+
+    /**
+     * Start following the log file, posting to the console of the given task
+     *
+     * @param key unique key of the build, used to stop tailing later
+     * @param logFile log file written by the build
+     * @param facade facade of the TFS build
+     * @param client client of the facade, leased until tailing stops
+     * @param taskId task to post the console lines to
+     */
+    public static void start(String key, File logFile, TfsBuildFacade facade, TfsClient client, UUID taskId) {
+        ConsoleLogTailer tailer = new ConsoleLogTailer(key, logFile, facade, client.lease(), taskId);
+        if (tailers.putIfAbsent(key, tailer) != null) {
+            client.release();
+            return;
+        }
+
+        long interval = Integer.getInteger(CONSOLE_TAIL_INTERVAL_MS_PROPERTY, DEFAULT_CONSOLE_TAIL_INTERVAL_MS);
+        tailer.schedule(interval);
+    }
+
+    /**
+     * Stop following the log file of this build
+     *
+     * @param key unique key of the build
+     */
+    public static void stop(String key) {
+        ConsoleLogTailer tailer = tailers.remove(key);
+        if (tailer != null) {
+            tailer.cancel();
+        }
+    }
+
+    /**
+     * Stop following the logs of all jobs of a TFS build, e.g. once its chain finished
+     *
+     * @param tfsBuildId id of the TFS build
+     */
+    public static void stopAll(int tfsBuildId) {
+        for (ConsoleLogTailer tailer : tailers.values()) {
+            if (tailer.facade.getTfsBuildId() == tfsBuildId && tailers.remove(tailer.key, tailer)) {
+                tailer.cancel();
+            }
+        }
+    }
+
+    private synchronized void schedule(long interval) {
+        polling = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to post console lines to TFS", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Only called by whoever removed the tailer, a poll still running keeps its own lease
+     */
+    private synchronized void cancel() {
+        if (polling != null) {
+            polling.cancel(false);
+        }
+        client.release();
+    }
+
+    /*
+     * Read whole lines written since the last poll, up to the per poll limits, and post them
+     */
+    private void poll() {
+        if (isExpired()) {
+            logger.info("Stopped following " + logFile + ", its job did not finish in time");
+            if (tailers.remove(key, this)) {
+                cancel();
+            }
+            return;
+        }
+
+        if (!logFile.isFile()) {
+            return;
+        }
+
+        List<String> lines = readNewLines();
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        // the log grew, whether or not the lines can be posted
+        lastGrowth = System.currentTimeMillis();
+        if (client.tryLease()) {
+            try {
+                facade.postConsoleLog(taskId, lines);
+            } finally {
+                client.release();
+            }
+        }
+    }
+
+    private boolean isExpired() {
+        long now = System.currentTimeMillis();
+        long maxIdle = TimeUnit.MINUTES.toMillis(
+                Integer.getInteger(CONSOLE_TAIL_MAX_IDLE_MINUTES_PROPERTY, DEFAULT_CONSOLE_TAIL_MAX_IDLE_MINUTES));
+        long maxLife = TimeUnit.HOURS.toMillis(
+                Integer.getInteger(CONSOLE_TAIL_MAX_LIFE_HOURS_PROPERTY, DEFAULT_CONSOLE_TAIL_MAX_LIFE_HOURS));
+
+        return now - lastGrowth > maxIdle || now - startedAt > maxLife;
+    }
+
+    private List<String> readNewLines() {
+        int maxLines = Integer.getInteger(CONSOLE_TAIL_MAX_LINES_PROPERTY, DEFAULT_CONSOLE_TAIL_MAX_LINES);
+        int maxBytes = Integer.getInteger(CONSOLE_TAIL_MAX_BYTES_PROPERTY, DEFAULT_CONSOLE_TAIL_MAX_BYTES);
+        List<String> lines = new ArrayList<String>();
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(logFile, "r");
+            long available = file.length() - offset;
+            if (available <= 0) {
+                return lines;
+            }
+
+            byte[] buffer = new byte[(int) Math.min(available, maxBytes)];
+            file.seek(offset);
+            file.readFully(buffer);
+
+            int lineStart = 0;
+            for (int i = 0; i < buffer.length && lines.size() < maxLines; i++) {
+                if (buffer[i] == '\n') {
+                    int lineEnd = (i > lineStart && buffer[i - 1] == '\r') ? i - 1 : i;
+                    lines.add(new String(buffer, lineStart, lineEnd - lineStart, UTF8));
+                    lineStart = i + 1;
+                }
+            }
+
+            // a partial last line is picked up on the next poll, unless it alone fills the whole buffer
+            if (lineStart == 0 && buffer.length == maxBytes) {
+                lines.add(new String(buffer, UTF8));
+                lineStart = buffer.length;
+            }
+
+            offset += lineStart;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read build log " + logFile, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+
+        return lines;
+    }
+}
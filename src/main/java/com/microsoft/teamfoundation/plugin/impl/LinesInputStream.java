@@ -0,0 +1,148 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streams log lines as UTF-8, each followed by a line separator.
+ *
+ * Lines are encoded lazily into a fixed size buffer borrowed from a small pool, so memory use does
+ * not depend on how many lines are uploaded.
+ */
+/* default */ class LinesInputStream extends InputStream {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String LINE_SEPARATOR = String.format("%n");
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final Iterator<String> lines;
+    private final CharsetEncoder encoder = UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private ByteBuffer buffer;
+    private CharBuffer current;
+    private boolean flushing;
+    private boolean separatorPending;
+
+    /* default */ LinesInputStream(List<String> lines) {
+        this.lines = lines.iterator();
+        this.buffer = borrowBuffer();
+        this.buffer.flip();
+    }
+
+    @Override
+    public int read() {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!ensureAvailable()) {
+            return -1;
+        }
+
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(bytes, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+                bufferPool.offer(buffer);
+            }
+            buffer = null;
+        }
+    }
+
+    private boolean ensureAvailable() {
+        if (buffer == null) {
+            return false;
+        }
+
+        return buffer.hasRemaining() || fill();
+    }
+
+    /*
+     * Encode as much of the remaining lines as fits into the buffer
+     */
+    private boolean fill() {
+        buffer.clear();
+
+        while (buffer.hasRemaining()) {
+            if (current == null) {
+                if (separatorPending) {
+                    current = CharBuffer.wrap(LINE_SEPARATOR);
+                    separatorPending = false;
+                } else if (lines.hasNext()) {
+                    String line = lines.next();
+                    current = CharBuffer.wrap(line != null ? line : "");
+                    separatorPending = true;
+                } else {
+                    break;
+                }
+
+                encoder.reset();
+                flushing = false;
+            }
+
+            if (!flushing) {
+                CoderResult result = encoder.encode(current, buffer, true);
+                if (result.isOverflow()) {
+                    break;
+                }
+                flushing = true;
+            }
+
+            if (encoder.flush(buffer).isOverflow()) {
+                break;
+            }
+
+            current = null;
+        }
+
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    private static ByteBuffer borrowBuffer() {
+        ByteBuffer pooled = bufferPool.poll();
+        if (pooled != null) {
+            pooled.clear();
+            return pooled;
+        }
+
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+}
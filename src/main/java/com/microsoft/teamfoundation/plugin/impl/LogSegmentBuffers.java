@@ -0,0 +1,70 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Reusable buffers for uploading logs one segment at a time.
+ *
+ * Segments are copied with FileChannel.read rather than memory-mapped, a mapping keeps the log file
+ * locked on Windows until the buffer happens to be garbage collected, and Bamboo could not delete or
+ * rotate it meanwhile.
+ */
+/* default */ final class LogSegmentBuffers {
+
+    /*
+     * Enough for the uploads running at the same time on the TFS executor, the rest are just allocated
+     */
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private LogSegmentBuffers() {
+    }
+
+    /* default */ static ByteBuffer acquire() {
+        int segmentSize = Integer.getInteger(TfsBuildFacadeImpl.LOG_SEGMENT_BYTES_PROPERTY, TfsBuildFacadeImpl.DEFAULT_LOG_SEGMENT_BYTES);
+
+        ByteBuffer buffer;
+        while ((buffer = pool.poll()) != null) {
+            // the segment size may have been changed meanwhile
+            if (buffer.capacity() == segmentSize) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        return ByteBuffer.allocate(segmentSize);
+    }
+
+    /* default */ static void release(ByteBuffer buffer) {
+        if (buffer != null && pool.size() < MAX_POOLED_BUFFERS) {
+            pool.offer(buffer);
+        }
+    }
+
+    /**
+     * Read up to length bytes from the channel starting at the given position, and flip the buffer for reading
+     *
+     * @return number of bytes read, less than asked for only at the end of the file
+     */
+    /* default */ static int read(FileChannel channel, long position, long length, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(length, buffer.capacity()));
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.Date;
+import java.util.UUID;
+
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskLog;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecord;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecordState;
+
+/**
+ * A single pending TFS update in the outbox journal, serialized as one line of JSON.
+ *
+ * Only plain fields are kept so the journal stays readable across plugin versions.
+ */
+/* default */ class OutboxEntry {
+
+    /* default */ enum Type {
+        START_BUILD,
+        FINISH_BUILD,
+        RECORD,
+        LOG_SEGMENT
+    }
+
+    /* default */ Type type;
+
+    /* default */ String serverUrl;
+    /* default */ String username;
+    /* default */ int buildId;
+
+    /* default */ String projectId;
+    /* default */ String planId;
+    /* default */ String timelineId;
+
+    /* start / finish build */
+    /* default */ Long startTime;
+    /* default */ Long finishTime;
+    /* default */ String buildResult;
+    /* default */ String sourceVersion;
+
+    /* timeline record */
+    /* default */ String recordId;
+    /* default */ String parentId;
+    /* default */ String recordType;
+    /* default */ String name;
+    /* default */ String state;
+    /* default */ String taskResult;
+    /* default */ String workerName;
+    /* default */ Integer logId;
+
+    /* log segment */
+    /* default */ String logFile;
+    /* default */ long offset;
+
+    /* default */ static OutboxEntry forClient(Type type, TfsClient client, int buildId) {
+        return forIdentity(type, client.getServerUrl(), client.getUsername(), buildId);
+    }
+
+    /* default */ static OutboxEntry forIdentity(Type type, String serverUrl, String username, int buildId) {
+        OutboxEntry entry = new OutboxEntry();
+        entry.type = type;
+        entry.serverUrl = serverUrl;
+        entry.username = username;
+        entry.buildId = buildId;
+
+        return entry;
+    }
+
+    /* default */ void setRecord(TimelineRecord record) {
+        recordId = toString(record.getId());
+        parentId = toString(record.getParentId());
+        recordType = record.getType();
+        name = record.getName();
+        state = record.getState() != null ? record.getState().name() : null;
+        taskResult = record.getResult() != null ? record.getResult().name() : null;
+        workerName = record.getWorkerName();
+        startTime = toMillis(record.getStartTime());
+        finishTime = toMillis(record.getFinishTime());
+        logId = record.getLog() != null ? record.getLog().getId() : null;
+    }
+
+    /* default */ TimelineRecord getRecord() {
+        TimelineRecord record = new TimelineRecord();
+        record.setId(toUUID(recordId));
+        record.setParentId(toUUID(parentId));
+        record.setType(recordType);
+        record.setName(name);
+        record.setState(state != null ? TimelineRecordState.valueOf(state) : null);
+        record.setResult(taskResult != null ? TaskResult.valueOf(taskResult) : null);
+        record.setWorkerName(workerName);
+        record.setStartTime(toDate(startTime));
+        record.setFinishTime(toDate(finishTime));
+
+        if (logId != null) {
+            TaskLog log = new TaskLog();
+            log.setId(logId);
+            record.setLog(log);
+        }
+
+        return record;
+    }
+
+    /**
+     * Take over the fields of an earlier update of the same record that this one leaves out, so the
+     * earlier entry can be dropped without losing e.g. the name of a record created while TFS was down
+     */
+    /* default */ void mergeFrom(OutboxEntry earlier) {
+        if (type != Type.RECORD || earlier.type != Type.RECORD) {
+            return;
+        }
+
+        projectId = projectId != null ? projectId : earlier.projectId;
+        planId = planId != null ? planId : earlier.planId;
+        timelineId = timelineId != null ? timelineId : earlier.timelineId;
+        parentId = parentId != null ? parentId : earlier.parentId;
+        recordType = recordType != null ? recordType : earlier.recordType;
+        name = name != null ? name : earlier.name;
+        state = state != null ? state : earlier.state;
+        taskResult = taskResult != null ? taskResult : earlier.taskResult;
+        workerName = workerName != null ? workerName : earlier.workerName;
+        startTime = startTime != null ? startTime : earlier.startTime;
+        finishTime = finishTime != null ? finishTime : earlier.finishTime;
+        logId = logId != null ? logId : earlier.logId;
+    }
+
+    /**
+     * Whether this entry makes an earlier entry pointless to send, once it has taken over the earlier
+     * entry's fields with mergeFrom
+     */
+    /* default */ boolean supersedes(OutboxEntry earlier) {
+        if (type != earlier.type || buildId != earlier.buildId) {
+            return false;
+        }
+
+        switch (type) {
+            case RECORD:
+                return recordId != null && recordId.equals(earlier.recordId);
+            case START_BUILD:
+            case FINISH_BUILD:
+                return true;
+            case LOG_SEGMENT:
+            default:
+                return false;
+        }
+    }
+
+    /* default */ static String toString(UUID id) {
+        return id != null ? id.toString() : null;
+    }
+
+    /* default */ static UUID toUUID(String id) {
+        return id != null ? UUID.fromString(id) : null;
+    }
+
+    /* default */ static Long toMillis(Date date) {
+        return date != null ? date.getTime() : null;
+    }
+
+    /* default */ static Date toDate(Long millis) {
+        return millis != null ? new Date(millis) : null;
+    }
+}
@@ -0,0 +1,238 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.Configuration;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.ClientRequest;
+import org.glassfish.jersey.client.ClientResponse;
+import org.glassfish.jersey.client.spi.AsyncConnectorCallback;
+import org.glassfish.jersey.client.spi.Connector;
+import org.glassfish.jersey.client.spi.ConnectorProvider;
+
+import com.microsoft.teamfoundation.plugin.TfsServerErrorException;
+import com.microsoft.teamfoundation.plugin.TfsUnavailableException;
+
+/**
+ * Wraps the connector used by all TFS sub area clients with retries and a per host circuit breaker.
+ *
+ * Connection failures and 5xx / 429 responses are retried with exponential backoff and full jitter,
+ * other responses (including 4xx errors) are handed back right away and prove the server is up.  A
+ * 5xx / 429 that is still there after the last attempt is thrown as a TfsServerErrorException, so callers
+ * can tell it apart from TFS rejecting the call and try again later.
+ * Requests with a stream entity can't be replayed and are only attempted once.  A POST may already
+ * have been processed when it times out or fails with a 5xx (a second queued build, a duplicate log),
+ * so POSTs are only retried when the connection was never made or the server turned them down with 429.
+ *
+ * Every request also gets a read timeout budget for its kind of operation, short for status
+ * updates and lookups, long for log appends.
+ */
+/* default */ class ResilientConnectorProvider implements ConnectorProvider {
+    private static final Logger logger = Logger.getLogger(ResilientConnectorProvider.class.getName());
+
+    public static final String RETRY_MAX_ATTEMPTS_PROPERTY = "retry_max_attempts";
+    public static final String RETRY_BASE_DELAY_MS_PROPERTY = "retry_base_delay_ms";
+    public static final String RETRY_MAX_DELAY_MS_PROPERTY = "retry_max_delay_ms";
+    public static final String READ_TIMEOUT_MS_PROPERTY = "read_timeout_ms";
+    public static final String LOG_READ_TIMEOUT_MS_PROPERTY = "log_read_timeout_ms";
+
+    private static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+    private static final int DEFAULT_RETRY_BASE_DELAY_MS = 200;
+    private static final int DEFAULT_RETRY_MAX_DELAY_MS = 5000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 30 * 1000;
+    private static final int DEFAULT_LOG_READ_TIMEOUT_MS = 10 * 60 * 1000;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final ConnectorProvider delegate;
+    private final CircuitBreaker circuitBreaker;
+
+    /* default */ ResilientConnectorProvider(ConnectorProvider delegate, String host) {
+        this.delegate = delegate;
+        this.circuitBreaker = CircuitBreaker.forHost(host);
+    }
+
+    /**
+     * The longest read timeout any request gets, for the client wide setting
+     */
+    /* default */ static int getMaxReadTimeout() {
+        return Math.max(Integer.getInteger(READ_TIMEOUT_MS_PROPERTY, DEFAULT_READ_TIMEOUT_MS),
+                Integer.getInteger(LOG_READ_TIMEOUT_MS_PROPERTY, DEFAULT_LOG_READ_TIMEOUT_MS));
+    }
+
+    @Override
+    public Connector getConnector(Client client, Configuration runtimeConfig) {
+        return new ResilientConnector(delegate.getConnector(client, runtimeConfig), circuitBreaker);
+    }
+
+    private static class ResilientConnector implements Connector {
+        private final Connector connector;
+        private final CircuitBreaker circuitBreaker;
+        private final Random random = new Random();
+
+        ResilientConnector(Connector connector, CircuitBreaker circuitBreaker) {
+            this.connector = connector;
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        @Override
+        public ClientResponse apply(ClientRequest request) {
+            boolean replayable = !(request.getEntity() instanceof InputStream);
+            boolean idempotent = !HttpMethod.POST.equalsIgnoreCase(request.getMethod());
+            request.setProperty(ClientProperties.READ_TIMEOUT, getReadTimeout(request, replayable));
+
+            int maxAttempts = replayable ? Math.max(1, Integer.getInteger(RETRY_MAX_ATTEMPTS_PROPERTY, DEFAULT_RETRY_MAX_ATTEMPTS)) : 1;
+
+            for (int attempt = 1; ; attempt++) {
+                if (!circuitBreaker.allowRequest()) {
+                    throw new TfsUnavailableException(String.format("TFS is unavailable, skipped %s %s",
+                            request.getMethod(), request.getUri()));
+                }
+
+                ClientResponse response;
+                try {
+                    response = connector.apply(replayable ? new ClientRequest(request) : request);
+                } catch (ProcessingException e) {
+                    circuitBreaker.recordFailure();
+                    if (attempt >= maxAttempts || !(idempotent || isConnectFailure(e))) {
+                        throw e;
+                    }
+
+                    logger.info(String.format("%s %s failed (%s), retrying", request.getMethod(), request.getUri(), e.getMessage()));
+                    backoff(attempt);
+                    continue;
+                } catch (RuntimeException e) {
+                    // never leave a half open circuit waiting for a probe that won't report back
+                    circuitBreaker.recordFailure();
+                    throw e;
+                }
+
+                if (!isRetryable(response.getStatus())) {
+                    circuitBreaker.recordSuccess();
+                    return response;
+                }
+
+                circuitBreaker.recordFailure();
+                if (attempt >= maxAttempts || !(idempotent || response.getStatus() == TOO_MANY_REQUESTS)) {
+                    response.close();
+                    throw new TfsServerErrorException(String.format("%s %s returned %d", request.getMethod(),
+                            request.getUri(), response.getStatus()), response.getStatus());
+                }
+
+                logger.info(String.format("%s %s returned %d, retrying", request.getMethod(), request.getUri(), response.getStatus()));
+                response.close();
+                backoff(attempt);
+            }
+        }
+
+        /*
+         * Not retried, but the outcome still counts, the call may be the probe of a half open circuit
+         */
+        @Override
+        public Future<?> apply(ClientRequest request, final AsyncConnectorCallback callback) {
+            if (!circuitBreaker.allowRequest()) {
+                throw new TfsUnavailableException(String.format("TFS is unavailable, skipped %s %s",
+                        request.getMethod(), request.getUri()));
+            }
+
+            try {
+                return connector.apply(request, new AsyncConnectorCallback() {
+                    @Override
+                    public void response(ClientResponse response) {
+                        if (isRetryable(response.getStatus())) {
+                            circuitBreaker.recordFailure();
+                        } else {
+                            circuitBreaker.recordSuccess();
+                        }
+                        callback.response(response);
+                    }
+
+                    @Override
+                    public void failure(Throwable failure) {
+                        circuitBreaker.recordFailure();
+                        callback.failure(failure);
+                    }
+                });
+            } catch (RuntimeException e) {
+                circuitBreaker.recordFailure();
+                throw e;
+            }
+        }
+
+        @Override
+        public String getName() {
+            return connector.getName();
+        }
+
+        @Override
+        public void close() {
+            connector.close();
+        }
+
+        /*
+         * Log appends carry a stream or go to the logs resource, everything else is a small JSON call
+         */
+        private static int getReadTimeout(ClientRequest request, boolean replayable) {
+            String path = request.getUri().getPath();
+            if (!replayable || (path != null && path.contains("/logs"))) {
+                return Integer.getInteger(LOG_READ_TIMEOUT_MS_PROPERTY, DEFAULT_LOG_READ_TIMEOUT_MS);
+            }
+
+            return Integer.getInteger(READ_TIMEOUT_MS_PROPERTY, DEFAULT_READ_TIMEOUT_MS);
+        }
+
+        private static boolean isRetryable(int status) {
+            return status >= 500 || status == TOO_MANY_REQUESTS;
+        }
+
+        /*
+         * The request never reached the server, so even a POST can safely be sent again
+         */
+        private static boolean isConnectFailure(Throwable t) {
+            while (t != null) {
+                if (t instanceof ConnectException || t instanceof ConnectTimeoutException
+                        || t instanceof NoRouteToHostException || t instanceof UnknownHostException) {
+                    return true;
+                }
+                t = t.getCause();
+            }
+
+            return false;
+        }
+
+        /*
+         * Exponential backoff with full jitter, so concurrent callers don't retry in lock step
+         */
+        private void backoff(int attempt) {
+            long base = Integer.getInteger(RETRY_BASE_DELAY_MS_PROPERTY, DEFAULT_RETRY_BASE_DELAY_MS);
+            long max = Integer.getInteger(RETRY_MAX_DELAY_MS_PROPERTY, DEFAULT_RETRY_MAX_DELAY_MS);
+            long ceiling = Math.min(max, base << Math.min(attempt - 1, 20));
+
+            long delay;
+            synchronized (random) {
+                delay = (long) (random.nextDouble() * ceiling);
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingException("Interrupted while waiting to retry", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+/**
+ * HTTP status of the last TFS response the current thread got.
+ *
+ * The TFS client throws the same VssServiceException for every error status, this tells e.g. a 404
+ * apart from a 401 for callers that treat them differently.
+ */
+/* default */ final class ResponseStatus {
+
+    private static final ThreadLocal<Integer> last = new ThreadLocal<Integer>();
+
+    private ResponseStatus() {
+    }
+
+    /* default */ static void record(int status) {
+        last.set(status);
+    }
+
+    /* default */ static void clear() {
+        last.remove();
+    }
+
+    /**
+     * @return status of the last response since clear(), or 0 if there was none
+     */
+    /* default */ static int get() {
+        Integer status = last.get();
+        return status != null ? status : 0;
+    }
+}
@@ -0,0 +1,97 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the tasks of one key one after another on an executor.
+ *
+ * A queue retires itself once it runs dry, the next task for its key starts a fresh one.
+ */
+/* default */ class SerialQueue implements Runnable {
+    private final Object key;
+    private final Executor executor;
+    private final ConcurrentMap<Object, SerialQueue> queues;
+    private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+    private boolean running;
+    private boolean retired;
+
+    private SerialQueue(Object key, Executor executor, ConcurrentMap<Object, SerialQueue> queues) {
+        this.key = key;
+        this.executor = executor;
+        this.queues = queues;
+    }
+
+    /**
+     * Run the task on the executor after all tasks previously submitted under the same key
+     *
+     * @param queues the queues of all keys, owned by the caller
+     */
+    /* default */ static void submit(ConcurrentMap<Object, SerialQueue> queues, Object key, Executor executor, Runnable task) {
+        while (true) {
+            SerialQueue queue = queues.get(key);
+            if (queue == null) {
+                SerialQueue created = new SerialQueue(key, executor, queues);
+                queue = queues.putIfAbsent(key, created);
+                if (queue == null) {
+                    queue = created;
+                }
+            }
+
+            // a queue that drained and retired itself can't be used anymore, pick up a fresh one
+            if (queue.add(task)) {
+                return;
+            }
+        }
+    }
+
+    private boolean add(Runnable task) {
+        boolean start;
+        synchronized (this) {
+            if (retired) {
+                return false;
+            }
+
+            tasks.add(task);
+            start = !running;
+            running = true;
+        }
+
+        // not under the lock, the executor may run the queue on this very thread
+        if (start) {
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    running = false;
+                }
+                throw e;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    retired = true;
+                    queues.remove(key, this);
+                    return;
+                }
+            }
+
+            task.run();
+        }
+    }
+}
@@ -5,30 +5,51 @@ package com.microsoft.teamfoundation.plugin.impl;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import com.microsoft.teamfoundation.build.webapi.model.*;
 import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
 import com.microsoft.teamfoundation.plugin.ActualBuild;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
 import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
 import com.microsoft.teamfoundation.plugin.TfsBuildFacadeFactory;
+import com.microsoft.vss.client.core.model.VssServiceException;
 
 public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
 
     private static final Logger logger = Logger.getLogger(TfsBuildFacadeFactoryImpl.class.getName());
 
     @Override
-    public TfsBuildFacade createBuildOnTfs(String projectId, int buildDefinition, ActualBuild actualBuild, TfsClient tfsClient) {
+    public TfsBuildFacade createBuildOnTfs(String projectId, final int buildDefinition, ActualBuild actualBuild, final TfsClient tfsClient) {
         if (actualBuild == null || tfsClient == null) {
             throw new IllegalArgumentException("Arguments cannot be null");
         }
 
-        TeamProjectReference projectReference = tfsClient.getProjectClient().getProject(projectId);
+        final TfsMetadataCache metadataCache = TfsMetadataCache.forClient(tfsClient);
+
+        // a project GUID doesn't need the project looked up first, the definition is fetched alongside it
+        final UUID projectGuid = parseGuid(projectId);
+        Future<DefinitionReference> definition = null;
+        if (projectGuid != null) {
+            definition = TfsExecutors.fork(TfsClient.leased(tfsClient, new Callable<DefinitionReference>() {
+                @Override
+                public DefinitionReference call() {
+                    return metadataCache.getDefinition(tfsClient, projectGuid, buildDefinition);
+                }
+            }));
+        }
+
+        TeamProjectReference projectReference = metadataCache.getProject(tfsClient, projectId);
         if (projectReference == null) {
             throw new RuntimeException(String.format("Could not find the project: %s", projectId));
         }
 
-        DefinitionReference definitionReference = tfsClient.getBuildClient().getDefinition(projectReference.getId(), buildDefinition, null, null);
+        DefinitionReference definitionReference = definition != null && projectReference.getId().equals(projectGuid)
+                ? TfsExecutors.await(definition)
+                : metadataCache.getDefinition(tfsClient, projectReference.getId(), buildDefinition);
         if (definitionReference == null) {
             throw new RuntimeException(String.format("Could not find the buildDefinition: %d", buildDefinition));
         }
@@ -43,26 +64,76 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
             throw new IllegalArgumentException("Arguments cannot be null");
         }
 
-        List<AgentPoolQueue> queues = tfsClient.getBuildClient().getQueues(null);
+        if (TfsBuildPool.isEnabled()) {
+            TfsBuildPool pool = TfsBuildPool.forDefinition(tfsClient, projectReference, definitionReference, actualBuild.getBuildSourceBranch());
+            TfsBuildCoordinates pooled = pool.claim(this, actualBuild, tfsClient);
+            if (pooled != null) {
+                logger.info(String.format("Claimed pre-queued build %d on TFS with plan Id %s", pooled.getTfsBuildId(), pooled.getPlanId()));
+
+                TfsBuildFacadeImpl facade = new TfsBuildFacadeImpl(pooled, actualBuild, tfsClient);
+                facade.hold();
+                facade.adoptPooledBuild(getBuildParameters(actualBuild));
+                return facade;
+            }
+        }
+
+        Build queuedBuild = queueBuildContainer(projectReference, definitionReference, actualBuild, tfsClient);
+
+        logger.info(String.format("Queued build on TFS with plan Id %s", queuedBuild.getOrchestrationPlan().getPlanId()));
+
+        // held until finishBuild
+        TfsBuildFacadeImpl facade = new TfsBuildFacadeImpl(queuedBuild, actualBuild, tfsClient, true);
+        facade.hold();
+        facade.startJobRecordCreation();
+        return facade;
+    }
+
+    /*
+     * Queue a build container that never runs on TFS, everything is reported by the plugin
+     */
+    /* default */ Build queueBuildContainer(TeamProjectReference projectReference, DefinitionReference definitionReference,
+                                            ActualBuild actualBuild, TfsClient tfsClient) {
+        TfsMetadataCache metadataCache = TfsMetadataCache.forClient(tfsClient);
+
+        List<AgentPoolQueue> queues = metadataCache.getQueues(tfsClient);
         if (queues == null || queues.isEmpty()) {
             logger.info("Creating JenkinsPluginQueue on TeamFoundationServer");
             queues = createTfsBuildQueue(tfsClient);
+            metadataCache.putQueues(queues);
         }
 
         AgentPoolQueue anyQueue = queues.get(0);
         Build buildContainer = createBuildContainer(projectReference, definitionReference, anyQueue, actualBuild);
-        Build queuedBuild = tfsClient.getBuildClient().queueBuild(buildContainer, true);
 
-        logger.info(String.format("Queued build on TFS with plan Id %s", queuedBuild.getOrchestrationPlan().getPlanId()));
+        Build queuedBuild;
+        try {
+            queuedBuild = tfsClient.getBuildClient().queueBuild(buildContainer, true);
+        } catch (VssServiceException e) {
+            // the project, definition or queue may be gone, don't hand out the same ids again
+            metadataCache.invalidateProject(projectReference.getName());
+            metadataCache.invalidateProject(String.valueOf(projectReference.getId()));
+            metadataCache.invalidateDefinition(projectReference.getId(), definitionReference.getId());
+            metadataCache.invalidateQueues();
+            throw e;
+        }
 
-        return new TfsBuildFacadeImpl(queuedBuild, actualBuild, tfsClient);
+        return queuedBuild;
     }
 
     @Override
     public TfsBuildFacade getBuildOnTfs(int tfsBuildId, ActualBuild actualBuild, TfsClient tfsClient) {
         Build tfsBuild = tfsClient.getBuildClient().getBuild(tfsBuildId, null);
 
-        return new TfsBuildFacadeImpl(tfsBuild, actualBuild, tfsClient);
+        return new TfsBuildFacadeImpl(tfsBuild, actualBuild, tfsClient, false);
+    }
+
+    @Override
+    public TfsBuildFacade getBuildOnTfs(TfsBuildCoordinates coordinates, ActualBuild actualBuild, TfsClient tfsClient) {
+        if (coordinates == null || actualBuild == null || tfsClient == null) {
+            throw new IllegalArgumentException("Arguments cannot be null");
+        }
+
+        return new TfsBuildFacadeImpl(coordinates, actualBuild, tfsClient);
     }
 
     @Override
@@ -72,6 +143,32 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
         return new TfsTaskLevelFacadeImpl(tfsBuild, tfsClient);
     }
 
+    @Override
+    public TfsBuildFacade getTaskLevelFacadeOnTfs(TfsBuildCoordinates coordinates, TfsClient tfsClient) {
+        if (coordinates == null || tfsClient == null) {
+            throw new IllegalArgumentException("Arguments cannot be null");
+        }
+
+        return new TfsTaskLevelFacadeImpl(coordinates, tfsClient);
+    }
+
+    private static String getBuildParameters(ActualBuild actualBuild) {
+        return String.format("{\"build.config\":\"%s\"}", actualBuild.getDisplayName());
+    }
+
+    private static UUID parseGuid(String projectId) {
+        if (projectId == null) {
+            return null;
+        }
+
+        try {
+            return UUID.fromString(projectId);
+        } catch (IllegalArgumentException e) {
+            // a project name
+            return null;
+        }
+    }
+
     private List<AgentPoolQueue> createTfsBuildQueue(TfsClient tfsClient) {
         AgentPoolQueue queue = new AgentPoolQueue();
         queue.setName("pluginsQueue");
@@ -87,7 +184,7 @@ public class TfsBuildFacadeFactoryImpl implements TfsBuildFacadeFactory {
         b.setDefinition(definition);
         b.setProject(project);
 
-        b.setParameters(String.format("{\"build.config\":\"%s\"}", actualBuild.getDisplayName()));
+        b.setParameters(getBuildParameters(actualBuild));
         b.setDemands(Collections.<Demand>emptyList());
         b.setQueueOptions(QueueOptions.DO_NOT_RUN);
 
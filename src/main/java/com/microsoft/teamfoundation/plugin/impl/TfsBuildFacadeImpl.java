@@ -4,12 +4,18 @@
 package com.microsoft.teamfoundation.plugin.impl;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.microsoft.teamfoundation.build.webapi.model.Build;
@@ -19,6 +25,8 @@ import com.microsoft.teamfoundation.distributedtask.webapi.TaskHttpClient;
 import com.microsoft.teamfoundation.distributedtask.webapi.model.*;
 
 import com.microsoft.teamfoundation.plugin.ActualBuild;
+import com.microsoft.teamfoundation.plugin.LogUploadCheckpoint;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
 import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
 
 /**
@@ -26,8 +34,12 @@ import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
  *
  * All updates to TFS build should go through this class.  Also deliberately this
  * class only contains IDs and does not keep state.  All build update operation are PATCH
- * based, and this object maybe out of sync with what is really happening on TFS,
- * so we GET the object from the IDs and then PATCH the server
+ * based, so we only send the fields we change, addressed by the IDs we hold, and never
+ * GET the build first
+ *
+ * Timeline records are the exception, they are served from a TimelineMirror and updates go
+ * through a write-behind TimelineRecordWriter.  Agent JVMs write the same timeline, so the
+ * mirror is read again from TFS before the build's open records are completed.
  */
 public class TfsBuildFacadeImpl implements TfsBuildFacade {
 
@@ -36,8 +48,12 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
     /*
      * Constants
      */
-    private static final String JOB_RECORD_TYPE = "Job";
+    /* default */ static final String JOB_RECORD_TYPE = "Job";
     private static final String TASK_RECORD_TYPE = "Task";
+    private static final String STAGE_RECORD_TYPE = "Stage";
+
+    public static final String LOG_SEGMENT_BYTES_PROPERTY = "log_segment_bytes";
+    /* default */ static final int DEFAULT_LOG_SEGMENT_BYTES = 4 * 1024 * 1024;
 
     /*
      * The Jenkins build which is running
@@ -74,9 +90,19 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
      */
     private TfsClient client;
 
+    /*
+     * A new build whose job record has yet to be created by startJobRecordCreation
+     */
+    private final boolean jobRecordMissing;
+
+    /*
+     * Creation of the job record of a new build, runs while the caller goes on preparing task records
+     */
+    private volatile Future<Void> jobRecordCreation;
+
     /* should only be instantiated from TfsBuildFacadeFactoryImpl from same package */
     /* default */
-    TfsBuildFacadeImpl(final Build tfsBuild, final ActualBuild actualBuild, final TfsClient tfsClient) {
+    TfsBuildFacadeImpl(final Build tfsBuild, final ActualBuild actualBuild, final TfsClient tfsClient, final boolean newBuild) {
         this.tfsBuildId = tfsBuild.getId();
         this.actualBuild = actualBuild;
         this.client = tfsClient;
@@ -86,21 +112,106 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
         TaskOrchestrationPlan plan = getTaskClient().getPlan(projectId, "build", planId);
         this.timelineId = plan.getTimeline().getId();
 
-        //populate timeline record
-        TimelineRecord jobRecord = getTimelineJobRecord(getTimelineId());
-        if (jobRecord == null) {
-            jobRecord = createTimelineJobRecord();
-            jobRecord.setName(getActualBuild().getDisplayName());
+        // the job record id of a new build follows from the timeline, there is no need to look for it
+        TimelineMirror mirror = TimelineMirror.forTimeline(getTimelineId());
+        TimelineRecord knownJobRecord = mirror.getJobRecord();
+        if (knownJobRecord == null && !newBuild) {
+            // builds started before record ids were derived have a random job record id
+            refreshTimelineMirror(true);
+            knownJobRecord = mirror.getJobRecord();
+        }
 
-            updateSingleRecord(jobRecord);
+        if (knownJobRecord != null) {
+            this.jobRecordId = knownJobRecord.getId();
+            this.jobRecordMissing = false;
+        } else {
+            this.jobRecordId = createRecordId(JOB_RECORD_TYPE, "");
+            this.jobRecordMissing = newBuild;
+        }
+    }
+
+    /*
+     * Create the job record of a new build in the background, called once the facade is fully constructed
+     */
+    /* default */ synchronized void startJobRecordCreation() {
+        if (jobRecordMissing && jobRecordCreation == null) {
+            jobRecordCreation = TfsExecutors.fork(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    createJobRecord();
+                    return null;
+                }
+            });
         }
+    }
+
+    private void createJobRecord() {
+        TimelineRecord jobRecord = createTimelineRecord(JOB_RECORD_TYPE, getJobRecordId(), null);
+        jobRecord.setName(getActualBuild().getDisplayName());
+        createLogForTimelineRecord(jobRecord);
+
+        // jobs on other agents look this record up, it can't wait in the write-behind buffer
+        updateSingleRecord(jobRecord);
+        getRecordWriter().flush();
+    }
 
-        if (jobRecord.getLog() == null) {
-            createLogForTimelineRecord(jobRecord);
+    /*
+     * Anything writing below or to the job record has to wait until it exists.  If creating it failed,
+     * the first caller to notice creates it again, and the next caller retries if that fails too.
+     */
+    /* default */ void awaitJobRecord() {
+        Future<Void> creation = jobRecordCreation;
+        if (creation == null) {
+            return;
+        }
+
+        try {
+            TfsExecutors.await(creation);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (jobRecordCreation == creation) {
+                    logger.log(Level.WARNING, "Could not create the job record of TFS build " + getTfsBuildId() + ", trying again", e);
+                    createJobRecord();
+                    jobRecordCreation = null;
+                }
+            }
+        }
+    }
+
+    /*
+     * Everything is already known, this constructor does not talk to TFS
+     */
+    /* default */
+    TfsBuildFacadeImpl(final TfsBuildCoordinates coordinates, final ActualBuild actualBuild, final TfsClient tfsClient) {
+        this.tfsBuildId = coordinates.getTfsBuildId();
+        this.actualBuild = actualBuild;
+        this.client = tfsClient;
+        this.projectId = coordinates.getProjectId();
+        this.planId = coordinates.getPlanId();
+        this.timelineId = coordinates.getTimelineId();
+        this.jobRecordId = coordinates.getJobRecordId();
+        this.jobRecordMissing = false;
+    }
+
+    /*
+     * A container taken from the TfsBuildPool was prepared for an earlier run, give it this run's parameters
+     * and its job record this run's name
+     */
+    /* default */ void adoptPooledBuild(String parameters) {
+        if (getTimelineRecordById(getJobRecordId()) != null) {
+            TimelineRecord jobRecord = new TimelineRecord();
+            jobRecord.setId(getJobRecordId());
+            jobRecord.setName(getActualBuild().getDisplayName());
+            updateSingleRecord(jobRecord);
         }
 
-        // populate rest of the fields
-        this.jobRecordId = jobRecord.getId();
+        try {
+            getClient().getBuildClient().updateBuild(createClaimedBuild(getTfsBuildId(), parameters, new Date()),
+                    getProjectId(), getTfsBuildId());
+        } catch (RuntimeException e) {
+            // the container works as it is, it only shows the earlier run's parameters
+            logger.log(Level.WARNING, "Could not update the parameters of claimed TFS build " + getTfsBuildId(), e);
+        }
     }
 
     /**
@@ -114,10 +225,17 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
     }
 
     @Override
-    public UUID createTaskRecord(String taskName) {
-        TimelineRecord jobRecord = getTimelineJobRecord(getTimelineId());
-        if (jobRecord != null) {
-            TimelineRecord record = createTimelineTaskRecord(jobRecord);
+    public TfsBuildCoordinates getCoordinates() {
+        return new TfsBuildCoordinates(getTfsBuildId(), getProjectId(), getPlanId(), getTimelineId(), getJobRecordId());
+    }
+
+    @Override
+    public UUID createTaskRecord(String taskKey, String taskName) {
+        awaitJobRecord();
+
+        // the job record id is all a task record needs, no need to look the job record up
+        if (getJobRecordId() != null) {
+            TimelineRecord record = createTimelineRecord(TASK_RECORD_TYPE, createRecordId(TASK_RECORD_TYPE, taskKey), getJobRecordId());
             record.setName(taskName);
             createLogForTimelineRecord(record);
 
@@ -128,54 +246,220 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
         return null;
     }
 
+    @Override
+    public Map<String, UUID> createTaskRecords(Map<String, Map<String, String>> tasksByStage) {
+        Map<String, UUID> taskIds = new LinkedHashMap<String, UUID>();
+        if (getJobRecordId() == null) {
+            return taskIds;
+        }
+
+        List<TimelineRecord> records = new ArrayList<TimelineRecord>();
+        for (Map.Entry<String, Map<String, String>> stage : tasksByStage.entrySet()) {
+            TimelineRecord stageRecord = createTimelineRecord(STAGE_RECORD_TYPE, createRecordId(STAGE_RECORD_TYPE, stage.getKey()), getJobRecordId());
+            stageRecord.setName(stage.getKey());
+            records.add(stageRecord);
+
+            for (Map.Entry<String, String> task : stage.getValue().entrySet()) {
+                TimelineRecord taskRecord = createTimelineRecord(TASK_RECORD_TYPE, createRecordId(TASK_RECORD_TYPE, task.getKey()), stageRecord.getId());
+                taskRecord.setName(task.getValue());
+                records.add(taskRecord);
+                taskIds.put(task.getKey(), taskRecord.getId());
+            }
+        }
+
+        // logs are independent of each other, allocate them in parallel on the bounded fork pool
+        List<Future<Void>> logs = new ArrayList<Future<Void>>(records.size());
+        for (final TimelineRecord record : records) {
+            logs.add(TfsExecutors.fork(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    createLogForTimelineRecord(record);
+                    return null;
+                }
+            }));
+        }
+        // the job record of a new build is created meanwhile, its children go out after it
+        awaitJobRecord();
+
+        for (Future<Void> log : logs) {
+            TfsExecutors.await(log);
+        }
+
+        TimelineMirror.forTimeline(getTimelineId()).update(records, JOB_RECORD_TYPE);
+        getRecordWriter().writeAll(records);
+
+        return taskIds;
+    }
+
     /**
      * Update TFS Build status to started with starting time
      */
     @Override
     public void startBuild() {
-        Build build = queryTfsBuild();
-
-        if (build != null) {
-            build.setStartTime(getActualBuild().getStartTime());
-            build.setStatus(BuildStatus.IN_PROGRESS);
+        try {
+            if (TfsOutbox.hasPending(getClient(), getTfsBuildId())) {
+                TfsOutbox.appendStartBuild(getClient(), getTfsBuildId(), getProjectId(), getActualBuild().getStartTime());
+                return;
+            }
 
-            getClient().getBuildClient().updateBuild(build, build.getProject().getId(), build.getId());
+            getClient().getBuildClient().updateBuild(createStartedBuild(getTfsBuildId(), getActualBuild().getStartTime()),
+                    getProjectId(), getTfsBuildId());
+        } catch (RuntimeException e) {
+            if (!TfsOutbox.isUnreachable(e)) {
+                throw e;
+            }
+            TfsOutbox.appendStartBuild(getClient(), getTfsBuildId(), getProjectId(), getActualBuild().getStartTime());
         }
     }
 
     /**
      * Update TFS Build status to finished with status
+     *
+     * The job record, task records still left open and the build itself are independent updates, the
+     * record batch is sent in parallel with the build PATCH so completion costs a single round trip.
      */
     @Override
     public void finishBuild() {
-        // first finish the job record
-        finishTaskRecord(getJobRecordId(), getActualBuild().getFinishTime(),
-                convertToTfsTaskResult(getActualBuild().getBuildResult()));
+        final Date finishTime = getActualBuild().getFinishTime();
+        final BuildResult tfsResult = getActualBuild().getBuildResult();
+        final String commitSha1 = getActualBuild().getBuildSourceCommit();
+
+        try {
+            awaitJobRecord();
+        } catch (RuntimeException e) {
+            // the build still has to complete, completing the job record below is a PATCH by id either way
+            logger.log(Level.WARNING, "Could not create the job record of TFS build " + getTfsBuildId(), e);
+        }
+        completeOpenRecords(finishTime, convertToTfsTaskResult(tfsResult));
 
-        Build b = queryTfsBuild();
-        b.setFinishTime(getActualBuild().getFinishTime());
+        // flushes the job record along with every buffered record update, and releases the build's hold
+        Future<Boolean> records = TfsExecutors.fork(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return TimelineRecordWriter.release(getTimelineId());
+            }
+        });
 
-        BuildResult tfsResult = getActualBuild().getBuildResult();
+        try {
+            if (TfsOutbox.hasPending(getClient(), getTfsBuildId())) {
+                TfsOutbox.appendFinishBuild(getClient(), getTfsBuildId(), getProjectId(), finishTime, tfsResult, commitSha1);
+                return;
+            }
 
-        b.setResult(tfsResult);
-        b.setStatus(BuildStatus.COMPLETED);
+            logger.info("Setting TFS build sourceVersion to: " + commitSha1);
+            getClient().getBuildClient().updateBuild(createFinishedBuild(getTfsBuildId(), finishTime, tfsResult, commitSha1),
+                    getProjectId(), getTfsBuildId());
+        } catch (RuntimeException e) {
+            if (!TfsOutbox.isUnreachable(e)) {
+                throw e;
+            }
+            TfsOutbox.appendFinishBuild(getClient(), getTfsBuildId(), getProjectId(), finishTime, tfsResult, commitSha1);
+        } finally {
+            // jobs still reporting from this JVM keep the timeline's mirror
+            boolean unused = true;
+            try {
+                unused = TfsExecutors.await(records);
+            } finally {
+                if (unused) {
+                    TimelineMirror.release(getTimelineId());
+                }
+            }
+        }
+    }
 
-        String commitSha1 = getActualBuild().getBuildSourceCommit();
-        logger.info("Setting TFS build sourceVersion to: " + commitSha1);
-        b.setSourceVersion(commitSha1);
+    /*
+     * Complete the job record, and abandon task records of jobs that never reported back.  Jobs on remote
+     * agents report to the timeline from their own JVM, so only a fresh read of the whole timeline tells
+     * which records are still open; this JVM's own updates are sent first so the read includes them.  If
+     * the timeline can't be read, task and stage records are left as they are rather than guessed.
+     *
+     * Only deltas are written, records in the mirror may still be queued for sending and are not changed.
+     */
+    private void completeOpenRecords(Date finishTime, TaskResult jobResult) {
+        TimelineMirror mirror = TimelineMirror.forTimeline(getTimelineId());
+
+        boolean fresh = false;
+        try {
+            getRecordWriter().flush();
+            refreshTimelineMirror(true);
+            fresh = true;
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Could not read the timeline of TFS build " + getTfsBuildId()
+                    + ", its open task records are left as they are", e);
+        }
+
+        if (fresh) {
+            List<TimelineRecord> openStages = new ArrayList<TimelineRecord>();
+            for (TimelineRecord record : mirror.getOpenRecords()) {
+                if (STAGE_RECORD_TYPE.equals(record.getType())) {
+                    openStages.add(record);
+                } else if (!record.getId().equals(getJobRecordId())) {
+                    updateSingleRecord(createCompletedRecord(record.getId(), finishTime, TaskResult.ABANDONED));
+                }
+            }
+
+            // stages only complete with the build, they take the worst result of their tasks as TFS has them now
+            for (TimelineRecord stage : openStages) {
+                updateSingleRecord(createCompletedRecord(stage.getId(), finishTime, getStageResult(mirror.getChildren(stage.getId()))));
+            }
+        }
 
-        getClient().getBuildClient().updateBuild(b, b.getProject().getId(), b.getId());
+        updateSingleRecord(createCompletedRecord(getJobRecordId(), finishTime != null ? finishTime : new Date(), jobResult));
+    }
+
+    /*
+     * Tasks still open when the build finishes are abandoned along with it
+     */
+    private static TaskResult getStageResult(List<TimelineRecord> tasks) {
+        TaskResult result = TaskResult.SUCCEEDED;
+        for (TimelineRecord task : tasks) {
+            TaskResult taskResult = task.getState() == TimelineRecordState.COMPLETED ? task.getResult() : TaskResult.ABANDONED;
+            if (taskResult == TaskResult.FAILED) {
+                return TaskResult.FAILED;
+            }
+            if (taskResult == TaskResult.CANCELED || taskResult == TaskResult.ABANDONED) {
+                result = TaskResult.CANCELED;
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Records in the mirror may still be queued for sending, state changes are written as deltas the mirror merges
+     */
+    private static TimelineRecord createStartedRecord(UUID id, Date startTime, String workerName) {
+        TimelineRecord record = new TimelineRecord();
+        record.setId(id);
+        record.setState(TimelineRecordState.IN_PROGRESS);
+        record.setStartTime(startTime);
+        record.setWorkerName(workerName);
+
+        return record;
+    }
+
+    private static TimelineRecord createCompletedRecord(UUID id, Date finishTime, TaskResult result) {
+        TimelineRecord record = new TimelineRecord();
+        record.setId(id);
+        record.setState(TimelineRecordState.COMPLETED);
+        record.setFinishTime(finishTime);
+        record.setResult(result);
+
+        return record;
     }
 
     @Override
     public void startTaskRecord(UUID taskId, Date startTime, String workerName) {
         TimelineRecord record = getTimelineRecordById(taskId);
         if (record != null) {
-            record.setState(TimelineRecordState.IN_PROGRESS);
-            record.setStartTime(startTime != null ? startTime : new Date());
-            record.setWorkerName(workerName);
+            Date started = startTime != null ? startTime : new Date();
+            updateSingleRecord(createStartedRecord(taskId, started, workerName));
 
-            updateSingleRecord(record);
+            // the first task to start also starts its stage
+            TimelineRecord parent = TimelineMirror.forTimeline(getTimelineId()).get(record.getParentId());
+            if (parent != null && STAGE_RECORD_TYPE.equals(parent.getType()) && parent.getState() == TimelineRecordState.PENDING) {
+                updateSingleRecord(createStartedRecord(parent.getId(), started, null));
+            }
         }
     }
 
@@ -183,40 +467,107 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
     public void finishTaskRecord(UUID taskId, Date finishTime, TaskResult result) {
         TimelineRecord record = getTimelineRecordById(taskId);
         if (record != null) {
-            record.setState(TimelineRecordState.COMPLETED);
-            record.setFinishTime(finishTime != null ? finishTime : new Date());
-            record.setResult(result);
-
-            updateSingleRecord(record);
+            updateSingleRecord(createCompletedRecord(taskId, finishTime != null ? finishTime : new Date(), result));
         }
     }
 
-    @Override
-    public void uploadJobLog(List<String> logLines) throws IOException {
-        uploadTaskLog(getJobRecordId(), logLines);
-    }
-
     @Override
     public void uploadTaskLog(UUID taskId, List<String> logLines) throws IOException {
         if (logLines == null || logLines.size() == 0 || taskId == null) {
             return;
         }
 
-        uploadTaskLog(taskId, getByteArrayInputStream(logLines));
+        TimelineRecord record = getTimelineRecordById(taskId);
+        if (record == null) {
+            return;
+        }
+
+        InputStream io = new LinesInputStream(logLines);
+        try {
+            appendLogInSegments(io, record.getLog().getId());
+        } finally {
+            io.close();
+        }
     }
 
     @Override
-    public void uploadTaskLog(UUID taskId, InputStream io) {
-        if (io == null || taskId == null) {
+    public void uploadTaskLog(UUID taskId, File logFile, long offset, LogUploadCheckpoint checkpoint) throws IOException {
+        if (logFile == null || taskId == null) {
             return;
         }
 
         TimelineRecord record = getTimelineRecordById(taskId);
-        if (record != null) {
-            getTaskClient().appendLog(io, getProjectId(), "build", getPlanId(), record.getLog().getId());
+        if (record == null) {
+            return;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(logFile, "r");
+        ByteBuffer segment = LogSegmentBuffers.acquire();
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+
+            // only the segment being sent is ever held in memory
+            long position = offset;
+            while (position < size) {
+                int length = LogSegmentBuffers.read(channel, position, size - position, segment);
+                if (length == 0) {
+                    break;
+                }
+
+                try {
+                    getTaskClient().appendLog(new ByteBufferInputStream(segment), getProjectId(), "build", getPlanId(), record.getLog().getId());
+                } catch (RuntimeException e) {
+                    if (!TfsOutbox.isUnreachable(e)) {
+                        throw e;
+                    }
+
+                    // the outbox sends the rest of the file once TFS is back
+                    TfsOutbox.appendLogSegment(getClient(), getTfsBuildId(), getProjectId(), getPlanId(), record.getLog().getId(), logFile, position);
+                    return;
+                }
+
+                position += length;
+                if (checkpoint != null) {
+                    checkpoint.save(position);
+                }
+            }
+        } finally {
+            LogSegmentBuffers.release(segment);
+            file.close();
         }
     }
 
+    /*
+     * Request bodies are buffered by the client, so only ever hand it one bounded segment
+     */
+    private void appendLogInSegments(InputStream io, int logId) {
+        ByteBuffer segment = LogSegmentBuffers.acquire();
+        try {
+            int length;
+            while ((length = readFully(io, segment.array())) > 0) {
+                getTaskClient().appendLog(new ByteArrayInputStream(segment.array(), 0, length), getProjectId(), "build", getPlanId(), logId);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read log for upload", e);
+        } finally {
+            LogSegmentBuffers.release(segment);
+        }
+    }
+
+    private static int readFully(InputStream io, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = io.read(buffer, total, buffer.length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+
+        return total;
+    }
+
     /**
      * Posting lines to TFS build console
      *
@@ -224,59 +575,93 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
      */
     @Override
     public void postConsoleLog(List<String> lines) {
-        if (lines == null || lines.size() == 0) {
+        postConsoleLog(getJobRecordId(), lines);
+    }
+
+    @Override
+    public void postConsoleLog(UUID taskId, List<String> lines) {
+        if (lines == null || lines.size() == 0 || taskId == null) {
             return;
         }
 
+        awaitJobRecord();
+
         // post console feed
-        getTaskClient().postLines(getProjectId(), "build", lines, getPlanId(), getTimelineId(), getJobRecordId());
+        getTaskClient().postLines(getProjectId(), "build", lines, getPlanId(), getTimelineId(), taskId);
     }
 
-    private InputStream getByteArrayInputStream(List<String> lines) throws IOException {
-        // assuming each line is 256-bytes long to avoid grow constantly
-        ByteArrayOutputStream os = new ByteArrayOutputStream(lines.size() * 256);
-        byte[] newLine = String.format("%n").getBytes(Charset.defaultCharset());
-        for (String line : lines) {
-            os.write(line.getBytes(Charset.defaultCharset()));
-            os.write(newLine);
-        }
-
-        return new ByteArrayInputStream(os.toByteArray());
+    @Override
+    public void hold() {
+        TimelineRecordWriter.hold(getTimelineId());
     }
 
-    private TimelineRecord getTimelineJobRecord(UUID timelineId) {
-        List<TimelineRecord> records = queryTfsTimelineRecords(timelineId);
-        for (TimelineRecord record : records) {
-            if (record.getType().equalsIgnoreCase(JOB_RECORD_TYPE)) {
-                return record;
-            }
+    @Override
+    public void release() {
+        if (TimelineRecordWriter.release(getTimelineId())) {
+            TimelineMirror.release(getTimelineId());
         }
-
-        return null;
     }
 
     private TimelineRecord getTimelineRecordById(UUID taskId) {
-        List<TimelineRecord> records = queryTfsTimelineRecords(getTimelineId());
-        for (TimelineRecord record : records) {
-            if (record.getId().equals(taskId)) {
-                return record;
-            }
+        awaitJobRecord();
+
+        TimelineMirror mirror = TimelineMirror.forTimeline(getTimelineId());
+        TimelineRecord record = mirror.get(taskId);
+        if (record == null) {
+            refreshTimelineMirror(false);
+            record = mirror.get(taskId);
         }
 
-        return null;
+        // records written from other JVMs can carry lower change ids than the ones we have seen
+        if (record == null) {
+            refreshTimelineMirror(true);
+            record = mirror.get(taskId);
+        }
+
+        return record;
     }
 
-    private List<TimelineRecord> queryTfsTimelineRecords(UUID timelineId) {
-        List<TimelineRecord> records = getTaskClient().getRecords(getProjectId(), "build", getPlanId(), timelineId);
-        if (records == null) {
-            records = new ArrayList<TimelineRecord>();
-        }
+    /*
+     * Fetch the records changed since the last change we have seen on this timeline, or all of them
+     */
+    private void refreshTimelineMirror(boolean full) {
+        TimelineMirror mirror = TimelineMirror.forTimeline(getTimelineId());
+        List<TimelineRecord> records = getTaskClient().getRecords(getProjectId(), "build", getPlanId(), getTimelineId(),
+                full ? null : Integer.valueOf(mirror.getLastChangeId()));
+
+        mirror.update(records, JOB_RECORD_TYPE);
+    }
 
-        return records;
+    /*
+     * Build updates only carry the fields that change, null fields are left out of the PATCH body
+     */
+    /* default */ static Build createStartedBuild(int buildId, Date startTime) {
+        Build delta = new Build();
+        delta.setId(buildId);
+        delta.setStartTime(startTime);
+        delta.setStatus(BuildStatus.IN_PROGRESS);
+
+        return delta;
     }
 
-    private Build queryTfsBuild() {
-        return getClient().getBuildClient().getBuild(getTfsBuildId(), null);
+    /* default */ static Build createClaimedBuild(int buildId, String parameters, Date queueTime) {
+        Build delta = new Build();
+        delta.setId(buildId);
+        delta.setParameters(parameters);
+        delta.setQueueTime(queueTime);
+
+        return delta;
+    }
+
+    /* default */ static Build createFinishedBuild(int buildId, Date finishTime, BuildResult result, String sourceVersion) {
+        Build delta = new Build();
+        delta.setId(buildId);
+        delta.setFinishTime(finishTime);
+        delta.setResult(result);
+        delta.setStatus(BuildStatus.COMPLETED);
+        delta.setSourceVersion(sourceVersion);
+
+        return delta;
     }
 
     /**
@@ -300,31 +685,39 @@ public class TfsBuildFacadeImpl implements TfsBuildFacade {
         return getTaskClient().createLog(getProjectId(), "build", log, getPlanId());
     }
 
+    /*
+     * Record updates are buffered and coalesced per timeline, the mirror sees them right away
+     */
     private void updateSingleRecord(TimelineRecord record) {
-        updateRecords(Collections.singletonList(record), getTimelineId());
+        TimelineMirror.forTimeline(getTimelineId()).update(Collections.singletonList(record), JOB_RECORD_TYPE);
+        getRecordWriter().write(record);
     }
 
-    private void updateRecords(List<TimelineRecord> timelineRecords, UUID timelineId) {
-        getTaskClient().updateRecords(getProjectId(), "build", timelineRecords, getPlanId(), timelineId);
+    private TimelineRecordWriter getRecordWriter() {
+        return TimelineRecordWriter.forTimeline(getTfsBuildId(), getProjectId(), getPlanId(), getTimelineId(), getClient());
     }
 
-    private TimelineRecord createTimelineJobRecord() {
-        TimelineRecord jobRecord = new TimelineRecord();
-        jobRecord.setId(UUID.randomUUID());
-        jobRecord.setType(JOB_RECORD_TYPE);
-        jobRecord.setState(TimelineRecordState.PENDING);
+    private TimelineRecord createTimelineRecord(String type, UUID id, UUID parentId) {
+        TimelineRecord record = new TimelineRecord();
+        record.setId(id);
+        record.setType(type);
+        record.setParentId(parentId);
+        record.setState(TimelineRecordState.PENDING);
 
-        return jobRecord;
+        return record;
     }
 
-    private TimelineRecord createTimelineTaskRecord(TimelineRecord jobRecord) {
-        TimelineRecord taskRecord = new TimelineRecord();
-        taskRecord.setId(UUID.randomUUID());
-        taskRecord.setType(TASK_RECORD_TYPE);
-        taskRecord.setParentId(jobRecord.getId());
-        taskRecord.setState(TimelineRecordState.PENDING);
-
-        return taskRecord;
+    /*
+     * Record ids are name based, so creating a record again, e.g. on a retry, updates the same record
+     * instead of adding a duplicate
+     */
+    private UUID createRecordId(String type, String key) {
+        String name = String.format("%s/%s/%s", getTimelineId(), type, key);
+        try {
+            return UUID.nameUUIDFromBytes(name.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     private TaskResult convertToTfsTaskResult(BuildResult buildResult) {
@@ -0,0 +1,309 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.Date;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microsoft.teamfoundation.build.webapi.model.Build;
+import com.microsoft.teamfoundation.build.webapi.model.BuildResult;
+import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
+import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
+import com.microsoft.teamfoundation.plugin.ActualBuild;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
+
+/**
+ * Build containers queued ahead of time, so a chain can start without waiting for queueBuild and getPlan.
+ *
+ * There is one pool per build definition and source branch, filled in the background after a chain of
+ * that definition asked for a container.  A pooled container has its plan and timeline resolved and its
+ * job record created, claiming one only updates its parameters for the chain that claims it.
+ * Containers nobody claimed within build_pool_max_idle_minutes, and all idle containers when the plugin
+ * is disabled, are completed as canceled so they don't linger on TFS.  Idle containers are also
+ * remembered in the TfsOutbox, which cancels the ones a Bamboo restart left behind.
+ *
+ * Containers are queued on threads of their own, never on the thread of the chain that claimed one.
+ *
+ * Pooling is off unless build_pool_size is set.
+ */
+/* default */ final class TfsBuildPool {
+    private static final Logger logger = Logger.getLogger(TfsBuildPool.class.getName());
+
+    public static final String BUILD_POOL_SIZE_PROPERTY = "build_pool_size";
+    public static final String BUILD_POOL_MAX_IDLE_MINUTES_PROPERTY = "build_pool_max_idle_minutes";
+
+    private static final int DEFAULT_BUILD_POOL_SIZE = 0;
+    private static final int DEFAULT_BUILD_POOL_MAX_IDLE_MINUTES = 30;
+    private static final int FILL_THREADS = 4;
+
+    private static final ConcurrentMap<String, TfsBuildPool> pools = new ConcurrentHashMap<String, TfsBuildPool>();
+
+    private static ScheduledExecutorService sweeper;
+
+    /*
+     * Unbounded queue, the pools never have more than build_pool_size fills each waiting
+     */
+    private static final ThreadPoolExecutor filler = createFiller();
+
+    private final String key;
+    private final String serverUrl;
+    private final String username;
+    private final TeamProjectReference projectReference;
+    private final DefinitionReference definitionReference;
+
+    private final Queue<PooledBuild> idle = new ConcurrentLinkedQueue<PooledBuild>();
+
+    /*
+     * Containers being queued right now
+     */
+    private final AtomicInteger filling = new AtomicInteger();
+
+    private TfsBuildPool(String key, String serverUrl, String username, TeamProjectReference projectReference,
+                         DefinitionReference definitionReference) {
+        this.key = key;
+        this.serverUrl = serverUrl;
+        this.username = username;
+        this.projectReference = projectReference;
+        this.definitionReference = definitionReference;
+    }
+
+    /* default */ static boolean isEnabled() {
+        return getPoolSize() > 0;
+    }
+
+    /* default */ static TfsBuildPool forDefinition(TfsClient client, TeamProjectReference projectReference,
+                                                    DefinitionReference definitionReference, String sourceBranch) {
+        String key = String.format("%s|%s|%s|%d|%s", client.getServerUrl(), client.getUsername(),
+                projectReference.getId(), definitionReference.getId(), sourceBranch);
+
+        TfsBuildPool pool = pools.get(key);
+        if (pool == null) {
+            TfsBuildPool created = new TfsBuildPool(key, client.getServerUrl(), client.getUsername(), projectReference, definitionReference);
+            pool = pools.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+                startSweeping();
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Take a prepared container, and queue the next ones in the background
+     *
+     * @param factory queues the containers
+     * @param actualBuild template for the containers queued next
+     * @return coordinates of the container, or null if none is ready yet
+     */
+    /* default */ TfsBuildCoordinates claim(TfsBuildFacadeFactoryImpl factory, ActualBuild actualBuild, TfsClient client) {
+        PooledBuild pooled = idle.poll();
+        if (pooled != null) {
+            TfsOutbox.releasePooledBuild(serverUrl, username, pooled.coordinates.getTfsBuildId());
+        }
+        replenish(factory, actualBuild, client);
+
+        return pooled != null ? pooled.coordinates : null;
+    }
+
+    /**
+     * Complete all idle containers, e.g. when the plugin is disabled
+     */
+    /* default */ static void retireAll() {
+        synchronized (TfsBuildPool.class) {
+            if (sweeper != null) {
+                sweeper.shutdownNow();
+                sweeper = null;
+            }
+        }
+
+        for (TfsBuildPool pool : pools.values()) {
+            PooledBuild pooled;
+            while ((pooled = pool.idle.poll()) != null) {
+                pool.retire(pooled.coordinates);
+            }
+        }
+        pools.clear();
+    }
+
+    private void replenish(final TfsBuildFacadeFactoryImpl factory, final ActualBuild actualBuild, final TfsClient client) {
+        int size = getPoolSize();
+        while (true) {
+            int inFlight = filling.get();
+            if (idle.size() + inFlight >= size) {
+                return;
+            }
+
+            if (filling.compareAndSet(inFlight, inFlight + 1)) {
+                // the claiming chain may be done with the client before the fill runs
+                client.lease();
+                filler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fill(factory, actualBuild, client);
+                        } catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "Failed to pre-queue a build on TFS for definition " + definitionReference.getName(), e);
+                        } finally {
+                            filling.decrementAndGet();
+                            client.release();
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void fill(TfsBuildFacadeFactoryImpl factory, ActualBuild actualBuild, TfsClient client) {
+        Build queuedBuild = factory.queueBuildContainer(projectReference, definitionReference, actualBuild, client);
+
+        TfsBuildFacadeImpl facade;
+        try {
+            facade = new TfsBuildFacadeImpl(queuedBuild, actualBuild, client, true);
+            facade.startJobRecordCreation();
+            facade.awaitJobRecord();
+        } catch (RuntimeException e) {
+            // half prepared, nobody can use it
+            try {
+                completeAsCanceled(client, queuedBuild.getId());
+            } catch (RuntimeException cancelFailure) {
+                logger.log(Level.WARNING, "Failed to complete unusable build " + queuedBuild.getId() + " on TFS", cancelFailure);
+            }
+            throw e;
+        }
+
+        TfsOutbox.holdPooledBuild(client, queuedBuild.getId(), projectReference.getId());
+
+        // the plugin may have been disabled while this one was being prepared
+        if (!pools.containsValue(this)) {
+            retire(facade.getCoordinates());
+            return;
+        }
+
+        idle.add(new PooledBuild(facade.getCoordinates()));
+        logger.info(String.format("Pre-queued build %d on TFS for definition %s", queuedBuild.getId(), definitionReference.getName()));
+    }
+
+    private void sweep() {
+        long maxIdle = TimeUnit.MINUTES.toMillis(
+                Integer.getInteger(BUILD_POOL_MAX_IDLE_MINUTES_PROPERTY, DEFAULT_BUILD_POOL_MAX_IDLE_MINUTES));
+        long now = System.currentTimeMillis();
+
+        for (PooledBuild pooled : idle) {
+            // a container claimed meanwhile is no longer ours to retire
+            if (pooled.queuedAt + maxIdle < now && idle.remove(pooled)) {
+                retire(pooled.coordinates);
+            }
+        }
+
+        // definitions nobody builds any more don't keep a pool.  A chain claiming from it meanwhile finds
+        // no container and its fill is retired, the next chain gets a new pool.
+        if (idle.isEmpty() && filling.get() == 0) {
+            pools.remove(key, this);
+        }
+    }
+
+    /*
+     * The client a container was queued with may have been closed since, any current one for the same user will do
+     */
+    private void retire(TfsBuildCoordinates coordinates) {
+        int buildId = coordinates.getTfsBuildId();
+        TfsClient client = TfsClientRegistry.getInstance().getAny(serverUrl, username);
+        try {
+            if (client == null) {
+                TfsOutbox.retirePooledBuild(serverUrl, username, buildId);
+                return;
+            }
+
+            try {
+                completeAsCanceled(client, buildId);
+            } finally {
+                client.release();
+            }
+            TfsOutbox.releasePooledBuild(serverUrl, username, buildId);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to complete unclaimed build " + buildId + " on TFS, leaving it to the outbox", e);
+            TfsOutbox.retirePooledBuild(serverUrl, username, buildId);
+        } finally {
+            if (TimelineRecordWriter.release(coordinates.getTimelineId())) {
+                TimelineMirror.release(coordinates.getTimelineId());
+            }
+        }
+    }
+
+    private void completeAsCanceled(TfsClient client, int buildId) {
+        client.getBuildClient().updateBuild(TfsBuildFacadeImpl.createFinishedBuild(buildId, new Date(), BuildResult.CANCELED, null),
+                projectReference.getId(), buildId);
+    }
+
+    private static synchronized void startSweeping() {
+        if (sweeper != null) {
+            return;
+        }
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tfs-build-pool");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (TfsBuildPool pool : pools.values()) {
+                    try {
+                        pool.sweep();
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Failed to retire unclaimed TFS builds", e);
+                    }
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    private static ThreadPoolExecutor createFiller() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(FILL_THREADS, FILL_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tfs-build-pool-filler-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static int getPoolSize() {
+        return Integer.getInteger(BUILD_POOL_SIZE_PROPERTY, DEFAULT_BUILD_POOL_SIZE);
+    }
+
+    private static class PooledBuild {
+        private final TfsBuildCoordinates coordinates;
+        private final long queuedAt;
+
+        PooledBuild(TfsBuildCoordinates coordinates) {
+            this.coordinates = coordinates;
+            this.queuedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.microsoft.teamfoundation.plugin.TfsUnavailableException;
+
+/**
+ * Limits how many Bamboo threads can be inside TFS calls at the same time.
+ *
+ * Work whose result can be delivered later is handed back to the caller to defer, e.g. to the outbox,
+ * when the bulkhead is full.  Work a build can't go on without (the TFS build a chain reports to, the
+ * record of a job) waits up to max_caller_wait_ms for room and is then skipped as if TFS was down.
+ */
+public final class TfsBulkhead {
+    private static final Logger logger = Logger.getLogger(TfsBulkhead.class.getName());
+
+    public static final String MAX_CONCURRENT_CALLERS_PROPERTY = "max_concurrent_callers";
+    public static final String MAX_CALLER_WAIT_MS_PROPERTY = "max_caller_wait_ms";
+
+    private static final int DEFAULT_MAX_CONCURRENT_CALLERS = 16;
+    private static final int DEFAULT_MAX_CALLER_WAIT_MS = 5000;
+
+    private static final Semaphore permits = new Semaphore(
+            Integer.getInteger(MAX_CONCURRENT_CALLERS_PROPERTY, DEFAULT_MAX_CONCURRENT_CALLERS));
+
+    private TfsBulkhead() {
+    }
+
+    /**
+     * Run the work on the calling thread, waiting a bounded time for the bulkhead to have room
+     *
+     * @param description what the work is for, to log when it is skipped
+     * @param work TFS calls to make
+     * @return the work's result
+     * @throws TfsUnavailableException if the bulkhead stayed full
+     */
+    public static <T> T call(String description, Callable<T> work) throws Exception {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(Integer.getInteger(MAX_CALLER_WAIT_MS_PROPERTY, DEFAULT_MAX_CALLER_WAIT_MS),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TfsUnavailableException("Interrupted while waiting to call TFS for " + description);
+        }
+
+        if (!acquired) {
+            throw new TfsUnavailableException("Too many threads are calling TFS, skipped " + description);
+        }
+
+        try {
+            return work.call();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Run the work on the calling thread if the bulkhead has room right now
+     *
+     * @param description what the work is for, to log when it is deferred
+     * @param work TFS calls to make
+     * @return true if the work ran, false if the caller has to defer it
+     */
+    public static boolean tryRun(String description, Runnable work) {
+        if (!permits.tryAcquire()) {
+            logger.info("Too many threads are calling TFS, deferring " + description);
+            return false;
+        }
+
+        try {
+            work.run();
+            return true;
+        } finally {
+            permits.release();
+        }
+    }
+}
@@ -9,7 +9,14 @@ import org.apache.http.auth.NTCredentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.glassfish.jersey.SslConfigurator;
 import org.glassfish.jersey.apache.connector.ApacheClientProperties;
 import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
@@ -20,6 +27,12 @@ import org.glassfish.jersey.client.RequestEntityProcessing;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import com.microsoft.teamfoundation.build.webapi.BuildHttpClient;
@@ -31,6 +44,9 @@ import com.microsoft.teamfoundation.plugin.TfsSecret;
  * This class encapsulates all REST calls to TFS.
  *
  * The http connection uses basic auth to authenticate.
+ *
+ * Clients are shared, everyone using one holds a lease on it.  A client the TfsClientRegistry evicted
+ * is only closed once the last lease is released.
  */
 public class TfsClient {
     private static final Logger logger = Logger.getLogger(TfsClient.class.getName());
@@ -41,6 +57,49 @@ public class TfsClient {
     public static final String TRUST_STORE_TYPE_PROPERTY = "trust_store_type";
     public static final String TRUST_MANAGER_FACTORY_ALGORITHM_PROPERTY = "trust_manager_factory_algorithm";
     public static final String SECURITY_PROTOCOL_PROPERTY = "security_protocol";
+    public static final String MAX_CONNECTIONS_TOTAL_PROPERTY = "max_connections_total";
+    public static final String MAX_CONNECTIONS_PER_ROUTE_PROPERTY = "max_connections_per_route";
+    public static final String CONNECTION_KEEP_ALIVE_SECONDS_PROPERTY = "connection_keep_alive_seconds";
+    public static final String IDLE_CONNECTION_CHECK_SECONDS_PROPERTY = "idle_connection_check_seconds";
+    public static final String STALE_CONNECTION_CHECK_PROPERTY = "stale_connection_check";
+    public static final String CONNECT_TIMEOUT_MS_PROPERTY = "connect_timeout_ms";
+
+    private static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 100;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_CONNECTION_KEEP_ALIVE_SECONDS = 60;
+    private static final int DEFAULT_IDLE_CONNECTION_CHECK_SECONDS = 30;
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+
+    /*
+     * One daemon thread evicts expired and idle connections for all clients
+     */
+    private static final ScheduledExecutorService connectionEvictor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tfs-idle-connection-evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final Client client;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private ScheduledFuture<?> idleConnectionEviction;
+
+    private volatile long lastValidated;
+
+    /*
+     * Guarded by this
+     */
+    private int leases;
+    private boolean retired;
+    private boolean closed;
+
+    private final String serverUrl;
+    private final String username;
 
     private BuildHttpClient buildClient;
     private CoreHttpClient projectClient;
@@ -50,7 +109,16 @@ public class TfsClient {
      * Creating a teamfoundation client
      */
     /* default */ TfsClient(URI uri, TfsClientFactoryImpl.ServiceProvider provider, String username, TfsSecret password) {
-        Client client = getClient(uri, provider, username, password);
+        this.serverUrl = uri.toString();
+        this.username = username;
+
+        SslConfigurator sslConfigurator = System.getProperty(PROXY_URL_PROPERTY) != null ? getSslConfigurator() : null;
+
+        // the connector ignores SSL_CONFIG once we hand it a connection manager, so the pool must carry the ssl setup
+        connectionManager = getConnectionManager(sslConfigurator);
+        scheduleIdleConnectionEviction();
+
+        client = getClient(uri, provider, username, password, sslConfigurator);
 
         projectClient = new CoreHttpClient(client, uri);
         buildClient = new BuildHttpClient(client, uri);
@@ -78,10 +146,132 @@ public class TfsClient {
         return taskHttpClient;
     }
 
+    /**
+     * get the collection url this client talks to
+     */
+    public String getServerUrl() {
+        return serverUrl;
+    }
+
+    /**
+     * get the user this client authenticates as
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * get the time this client was last verified to be working against the server
+     */
+    public long getLastValidated() {
+        return lastValidated;
+    }
+
+    /* default */ void setLastValidated(long lastValidated) {
+        this.lastValidated = lastValidated;
+    }
+
+    /**
+     * Take a lease on this client, it is not closed before the lease is released
+     *
+     * @return this client
+     * @throws IllegalStateException if the client was closed already
+     */
+    public TfsClient lease() {
+        if (!tryLease()) {
+            throw new IllegalStateException("The TFS client for " + serverUrl + " is closed");
+        }
+
+        return this;
+    }
+
+    /* default */ synchronized boolean tryLease() {
+        if (closed) {
+            return false;
+        }
+
+        leases++;
+        return true;
+    }
+
+    /**
+     * Give back a lease, taken with lease() or handed out by the TfsClientFactory
+     */
+    public void release() {
+        synchronized (this) {
+            if (leases > 0) {
+                leases--;
+            }
+            if (!retired || leases > 0 || closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        closeConnections();
+    }
+
+    /*
+     * No new leases are handed out, close once the current ones are released
+     */
+    /* default */ void retire() {
+        synchronized (this) {
+            retired = true;
+            if (leases > 0 || closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        closeConnections();
+    }
+
+    /**
+     * Hold a lease for as long as the task runs, taken right away so the client can't be closed before it starts
+     *
+     * Meant for tasks forked off a caller that may release its own lease before the task is done
+     */
+    public static <T> Callable<T> leased(final TfsClient client, final Callable<T> task) {
+        client.lease();
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return task.call();
+                } finally {
+                    client.release();
+                }
+            }
+        };
+    }
+
+    /**
+     * Release the underlying http connections right away, whoever holds a lease, this client can not be used afterwards
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        closeConnections();
+    }
+
+    private void closeConnections() {
+        if (idleConnectionEviction != null) {
+            idleConnectionEviction.cancel(false);
+        }
+
+        client.close();
+    }
+
     /*
      * Creating a apache http client based JAX-RS client
      */
-    private Client getClient(URI uri, TfsClientFactoryImpl.ServiceProvider provider, String username, TfsSecret password) {
+    private Client getClient(URI uri, TfsClientFactoryImpl.ServiceProvider provider, String username, TfsSecret password,
+                             SslConfigurator sslConfigurator) {
         ClientConfig clientConfig = new ClientConfig();
 
         CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
@@ -108,17 +298,67 @@ public class TfsClient {
 
         clientConfig.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.BUFFERED);
 
-        if (System.getProperty(PROXY_URL_PROPERTY) != null) {
+        // the ResilientConnectorProvider sets a tighter read timeout per request, depending on the operation, this
+        // one is the floor for requests that don't go through it, e.g. asynchronous ones
+        clientConfig.property(ClientProperties.CONNECT_TIMEOUT, Integer.getInteger(CONNECT_TIMEOUT_MS_PROPERTY, DEFAULT_CONNECT_TIMEOUT_MS));
+        clientConfig.property(ClientProperties.READ_TIMEOUT, ResilientConnectorProvider.getMaxReadTimeout());
+
+        if (sslConfigurator != null) {
             clientConfig.property(ClientProperties.PROXY_URI, System.getProperty(PROXY_URL_PROPERTY));
-            clientConfig.property(ApacheClientProperties.SSL_CONFIG, getSslConfigurator());
+            clientConfig.property(ApacheClientProperties.SSL_CONFIG, sslConfigurator);
         }
 
+        clientConfig.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+        clientConfig.property(ApacheClientProperties.REQUEST_CONFIG, RequestConfig.custom()
+                .setStaleConnectionCheckEnabled(Boolean.parseBoolean(System.getProperty(STALE_CONNECTION_CHECK_PROPERTY, "true")))
+                .build());
+
         clientConfig.property(ApacheClientProperties.CREDENTIALS_PROVIDER, credentialsProvider);
-        clientConfig.connectorProvider(new ApacheConnectorProvider());
+        // identical concurrent GETs share one conditional, retried call
+        clientConfig.connectorProvider(new CoalescingConnectorProvider(new ConditionalGetConnectorProvider(
+                new ResilientConnectorProvider(new ApacheConnectorProvider(), uri.getAuthority()))));
 
         return ClientBuilder.newClient(clientConfig);
     }
 
+    /*
+     * Setting up a pooled connection manager shared by all sub area clients
+     */
+    private static PoolingHttpClientConnectionManager getConnectionManager(SslConfigurator sslConfigurator) {
+        SSLConnectionSocketFactory sslSocketFactory = sslConfigurator != null
+                ? new SSLConnectionSocketFactory(sslConfigurator.createSSLContext())
+                : SSLConnectionSocketFactory.getSocketFactory();
+
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", sslSocketFactory)
+                .build();
+
+        PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(registry, null, null, null,
+                Integer.getInteger(CONNECTION_KEEP_ALIVE_SECONDS_PROPERTY, DEFAULT_CONNECTION_KEEP_ALIVE_SECONDS), TimeUnit.SECONDS);
+        manager.setMaxTotal(Integer.getInteger(MAX_CONNECTIONS_TOTAL_PROPERTY, DEFAULT_MAX_CONNECTIONS_TOTAL));
+        manager.setDefaultMaxPerRoute(Integer.getInteger(MAX_CONNECTIONS_PER_ROUTE_PROPERTY, DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+
+        return manager;
+    }
+
+    /*
+     * Periodically close connections the server has likely dropped, so we don't hand out dead sockets
+     */
+    private void scheduleIdleConnectionEviction() {
+        final long keepAlive = Integer.getInteger(CONNECTION_KEEP_ALIVE_SECONDS_PROPERTY, DEFAULT_CONNECTION_KEEP_ALIVE_SECONDS);
+        final long interval = Integer.getInteger(IDLE_CONNECTION_CHECK_SECONDS_PROPERTY, DEFAULT_IDLE_CONNECTION_CHECK_SECONDS);
+        final PoolingHttpClientConnectionManager manager = connectionManager;
+
+        idleConnectionEviction = connectionEvictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(keepAlive, TimeUnit.SECONDS);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
     /*
      * Setting up ssl proxy
      */
@@ -9,6 +9,9 @@ import com.microsoft.vss.client.core.model.VssServiceException;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 public class TfsClientFactoryImpl implements TfsClientFactory {
 
@@ -17,27 +20,89 @@ public class TfsClientFactoryImpl implements TfsClientFactory {
         VSO
     }
 
+    public static final String CLIENT_VALIDATION_TTL_MINUTES_PROPERTY = "client_validation_ttl_minutes";
+
+    private static final int DEFAULT_CLIENT_VALIDATION_TTL_MINUTES = 10;
+
+    /*
+     * The service provider detected for each host, so a new client does not have to probe both auth methods
+     */
+    private static final ConcurrentMap<String, DetectedProvider> detectedProviders = new ConcurrentHashMap<String, DetectedProvider>();
+
     public TfsClient getValidatedClient(String url, String username, TfsSecret password) throws URISyntaxException, VssServiceException {
+        TfsClientRegistry registry = TfsClientRegistry.getInstance();
+        String secret = password.getSecret();
+
+        TfsClient client = registry.get(url, username, secret);
+        if (client != null) {
+            if (client.getLastValidated() + getValidationTtl() > System.currentTimeMillis()) {
+                return client;
+            }
+
+            try {
+                validate(client);
+                return client;
+            } catch (VssServiceException vse) {
+                client.release();
+                registry.evict(url, username, secret);
+            }
+        }
+
+        return registry.register(url, username, secret, createValidatedClient(url, username, password));
+    }
+
+    private TfsClient createValidatedClient(String url, String username, TfsSecret password) throws URISyntaxException, VssServiceException {
         URI uri = new URI(url);
-        ServiceProvider provider = guessIsHostedInstallation(uri) ? ServiceProvider.VSO : ServiceProvider.TFS;
+        ServiceProvider provider = getDetectedProvider(uri);
+        if (provider == null) {
+            provider = guessIsHostedInstallation(uri) ? ServiceProvider.VSO : ServiceProvider.TFS;
+        }
 
-        TfsClient client;
+        TfsClient client = null;
         try {
             client = new TfsClient(uri, provider, username, password);
 
             // if this returns without throwing VssServiceException, client is working
-            client.getProjectClient().getProjects();
+            validate(client);
 
         } catch (VssServiceException vse){
+            if (client != null) {
+                client.close();
+            }
+
             provider = (provider == ServiceProvider.TFS) ? ServiceProvider.VSO : ServiceProvider.TFS;
 
             client = new TfsClient(uri, provider, username, password);
-            client.getProjectClient().getProjects();
+            validate(client);
         }
 
+        detectedProviders.put(uri.getAuthority(), new DetectedProvider(provider));
+
         return client;
     }
 
+    /*
+     * Cheapest authenticated call we have, we only care whether it throws
+     */
+    private void validate(TfsClient client) throws VssServiceException {
+        client.getProjectClient().getProjects(null, 1, null);
+        client.setLastValidated(System.currentTimeMillis());
+    }
+
+    private ServiceProvider getDetectedProvider(URI uri) {
+        DetectedProvider detected = detectedProviders.get(uri.getAuthority());
+        if (detected == null || detected.detectedAt + getValidationTtl() < System.currentTimeMillis()) {
+            return null;
+        }
+
+        return detected.provider;
+    }
+
+    private static long getValidationTtl() {
+        return TimeUnit.MINUTES.toMillis(
+                Integer.getInteger(CLIENT_VALIDATION_TTL_MINUTES_PROPERTY, DEFAULT_CLIENT_VALIDATION_TTL_MINUTES));
+    }
+
     /*
      * Best educated guess about whether this is a hosted VSO instance
      *
@@ -52,4 +117,14 @@ public class TfsClientFactoryImpl implements TfsClientFactory {
         return host.endsWith("dev.azure.com") || host.endsWith("visualstudio.com") || host.endsWith(".tfsallin.net");
     }
 
+    private static class DetectedProvider {
+        private final ServiceProvider provider;
+        private final long detectedAt;
+
+        DetectedProvider(ServiceProvider provider) {
+            this.provider = provider;
+            this.detectedAt = System.currentTimeMillis();
+        }
+    }
+
 }
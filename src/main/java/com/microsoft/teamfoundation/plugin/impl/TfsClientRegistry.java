@@ -0,0 +1,216 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Plugin wide registry of validated TfsClients.
+ *
+ * Building a TfsClient means a new JAX-RS client, a new connection pool and a cold TLS handshake, so
+ * all actions share one long-lived client per server URL, username and secret fingerprint.  Clients that
+ * have not been used for a while, or whose credentials have changed, are evicted, and closed once the
+ * last lease on them is released.  Every client handed out is leased to the caller, who has to release it.
+ */
+public class TfsClientRegistry {
+    private static final Logger logger = Logger.getLogger(TfsClientRegistry.class.getName());
+
+    public static final String CLIENT_IDLE_TIMEOUT_MINUTES_PROPERTY = "client_idle_timeout_minutes";
+
+    private static final int DEFAULT_CLIENT_IDLE_TIMEOUT_MINUTES = 30;
+
+    private static final TfsClientRegistry INSTANCE = new TfsClientRegistry();
+
+    private final ConcurrentMap<String, Entry> clients = new ConcurrentHashMap<String, Entry>();
+
+    public static TfsClientRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /* default */ TfsClientRegistry() {
+    }
+
+    /**
+     * Get a previously registered client for these credentials
+     *
+     * @param url TFS collection level url
+     * @param username
+     * @param secret clear text secret
+     * @return registered client leased to the caller, or null if there is none
+     */
+    public TfsClient get(String url, String username, String secret) {
+        evictIdleClients();
+
+        String key = getKey(url, username, secret);
+        Entry entry = clients.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        // evicted and closed meanwhile
+        if (!entry.client.tryLease()) {
+            clients.remove(key, entry);
+            return null;
+        }
+
+        entry.touch();
+        return entry.client;
+    }
+
+    /**
+     * Get any registered client for this url and username, whatever secret it was registered with
+     *
+     * Only meant for background work that has no credentials of its own, like replaying the outbox
+     *
+     * @param url TFS collection level url
+     * @param username
+     * @return registered client leased to the caller, or null if there is none
+     */
+    public TfsClient getAny(String url, String username) {
+        String identity = getIdentity(url, username);
+        for (Entry entry : clients.values()) {
+            if (entry.identity.equals(identity) && entry.client.tryLease()) {
+                return entry.client;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Register a validated client for these credentials
+     *
+     * If another thread registered a client for the same credentials first, that client wins and the one
+     * passed in is closed.  Clients registered for the same url and username with a different secret are evicted.
+     *
+     * @param url TFS collection level url
+     * @param username
+     * @param secret clear text secret
+     * @param client validated client
+     * @return the client that should be used, leased to the caller
+     */
+    public TfsClient register(String url, String username, String secret, TfsClient client) {
+        String key = getKey(url, username, secret);
+        Entry entry = new Entry(getIdentity(url, username), client);
+        client.lease();
+
+        while (true) {
+            Entry existing = clients.putIfAbsent(key, entry);
+            if (existing == null) {
+                break;
+            }
+
+            if (existing.client.tryLease()) {
+                client.close();
+                existing.touch();
+                return existing.client;
+            }
+
+            // evicted and closed meanwhile, take its place
+            clients.remove(key, existing);
+        }
+
+        evictSupersededClients(key, entry.identity);
+        return client;
+    }
+
+    /**
+     * Evict the client registered for these credentials, e.g. when it stopped working
+     */
+    public void evict(String url, String username, String secret) {
+        Entry entry = clients.remove(getKey(url, username, secret));
+        if (entry != null) {
+            entry.client.retire();
+        }
+    }
+
+    /**
+     * Forget all registered clients, each is closed once it is no longer leased
+     */
+    public void clear() {
+        Iterator<Entry> it = clients.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            entry.client.retire();
+        }
+    }
+
+    private void evictIdleClients() {
+        long idleTimeout = TimeUnit.MINUTES.toMillis(
+                Integer.getInteger(CLIENT_IDLE_TIMEOUT_MINUTES_PROPERTY, DEFAULT_CLIENT_IDLE_TIMEOUT_MINUTES));
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, Entry> e : clients.entrySet()) {
+            Entry entry = e.getValue();
+            if (now - entry.lastAccess > idleTimeout && clients.remove(e.getKey(), entry)) {
+                logger.info("Retiring TFS client for " + entry.identity + " after being idle");
+                entry.client.retire();
+            }
+        }
+    }
+
+    private void evictSupersededClients(String key, String identity) {
+        for (Map.Entry<String, Entry> e : clients.entrySet()) {
+            Entry entry = e.getValue();
+            if (!e.getKey().equals(key) && entry.identity.equals(identity) && clients.remove(e.getKey(), entry)) {
+                logger.info("Retiring TFS client for " + identity + " as the credentials have changed");
+                entry.client.retire();
+            }
+        }
+    }
+
+    private static String getIdentity(String url, String username) {
+        return String.format("%s|%s", url, username);
+    }
+
+    private static String getKey(String url, String username, String secret) {
+        return getIdentity(url, username) + "|" + fingerprint(secret);
+    }
+
+    /*
+     * We never want to keep the clear text secret around as part of the key
+     */
+    private static String fingerprint(String secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(String.valueOf(secret).getBytes("UTF-8"));
+
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        private final String identity;
+        private final TfsClient client;
+        private volatile long lastAccess;
+
+        Entry(String identity, TfsClient client) {
+            this.identity = identity;
+            this.client = client;
+            touch();
+        }
+
+        void touch() {
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+}
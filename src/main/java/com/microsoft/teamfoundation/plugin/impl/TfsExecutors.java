@@ -0,0 +1,184 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded thread pool that runs TFS calls off Bamboo's threads.
+ *
+ * Work can be submitted under a key (e.g. the TFS build id), all work for the same key runs in
+ * submission order, one task at a time.  When the pool and its queue are full the submitting thread
+ * runs the work itself, so we slow down instead of dropping updates.
+ */
+public final class TfsExecutors {
+    private static final Logger logger = Logger.getLogger(TfsExecutors.class.getName());
+
+    public static final String EXECUTOR_POOL_SIZE_PROPERTY = "executor_pool_size";
+    public static final String EXECUTOR_QUEUE_SIZE_PROPERTY = "executor_queue_size";
+    public static final String FORK_POOL_SIZE_PROPERTY = "fork_pool_size";
+
+    private static final int DEFAULT_EXECUTOR_POOL_SIZE = 8;
+    private static final int DEFAULT_EXECUTOR_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_FORK_POOL_SIZE = 16;
+
+    private static final ThreadPoolExecutor pool = createPool();
+
+    /*
+     * For independent calls a caller, possibly a pool thread itself, runs in parallel and waits for right
+     * away.  Kept apart from the pool so waiting on them can never starve it.
+     */
+    private static final ThreadPoolExecutor forkPool = createForkPool();
+
+    private static final ConcurrentMap<Object, SerialQueue> serialQueues = new ConcurrentHashMap<Object, SerialQueue>();
+
+    private TfsExecutors() {
+    }
+
+    /**
+     * Run the task on the TFS pool
+     *
+     * @param task work to run
+     * @return future of the task's result
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        LoggingFutureTask<T> future = new LoggingFutureTask<T>(task);
+        pool.execute(future);
+
+        return future;
+    }
+
+    /**
+     * Run the task on the TFS pool after all tasks previously submitted under the same key
+     *
+     * @param key ordering key, e.g. the TFS build id
+     * @param task work to run
+     * @return future of the task's result
+     */
+    public static <T> Future<T> submitOrdered(Object key, Callable<T> task) {
+        LoggingFutureTask<T> future = new LoggingFutureTask<T>(task);
+
+        SerialQueue.submit(serialQueues, key, pool, future);
+        return future;
+    }
+
+    /**
+     * Run the task in parallel with the caller, who is expected to wait for it shortly.  If fork_pool_size
+     * tasks are running already, the caller runs it right away instead.
+     *
+     * @param task work to run
+     * @return future of the task's result
+     */
+    public static <T> Future<T> fork(Callable<T> task) {
+        // always waited for, failures reach the caller
+        FutureTask<T> future = new FutureTask<T>(task);
+        forkPool.execute(future);
+
+        return future;
+    }
+
+    /**
+     * Wait for the future and unwrap failures of the task
+     */
+    public static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static ThreadPoolExecutor createPool() {
+        int poolSize = Integer.getInteger(EXECUTOR_POOL_SIZE_PROPERTY, DEFAULT_EXECUTOR_POOL_SIZE);
+        int queueSize = Integer.getInteger(EXECUTOR_QUEUE_SIZE_PROPERTY, DEFAULT_EXECUTOR_QUEUE_SIZE);
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tfs-executor-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    private static ThreadPoolExecutor createForkPool() {
+        int poolSize = Integer.getInteger(FORK_POOL_SIZE_PROPERTY, DEFAULT_FORK_POOL_SIZE);
+
+        // nothing is queued, a caller that finds every fork thread busy would only be waiting anyway
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tfs-fork-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /*
+     * Nobody may ever look at the result of fire and forget work, so at least log its failures.  A caller
+     * already waiting for the result gets the failure itself and logs it as it sees fit.
+     */
+    private static class LoggingFutureTask<T> extends FutureTask<T> {
+        private volatile boolean awaited;
+
+        LoggingFutureTask(Callable<T> callable) {
+            super(callable);
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            awaited = true;
+            return super.get();
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled() || awaited) {
+                return;
+            }
+
+            try {
+                get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.log(Level.WARNING, "TFS call failed", e.getCause());
+            }
+        }
+    }
+}
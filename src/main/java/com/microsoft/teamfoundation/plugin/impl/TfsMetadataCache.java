@@ -0,0 +1,223 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.microsoft.teamfoundation.build.webapi.model.AgentPoolQueue;
+import com.microsoft.teamfoundation.build.webapi.model.DefinitionReference;
+import com.microsoft.teamfoundation.core.webapi.model.TeamProjectReference;
+import com.microsoft.vss.client.core.model.VssServiceException;
+
+/**
+ * Shared cache of the TFS metadata every build needs: team projects, build definitions and agent queues.
+ *
+ * There is one cache per server and user, shared by all plans pointing at that collection.  Entries
+ * expire after a TTL and the least recently used ones are dropped once the cache is full.  Lookups
+ * TFS answered without a result or with 404 are cached too, for a shorter time, so a misconfigured
+ * plan doesn't hit TFS on every run.  Callers invalidate entries when TFS no longer knows an id they got from here.
+ */
+public final class TfsMetadataCache {
+    private static final Logger logger = Logger.getLogger(TfsMetadataCache.class.getName());
+
+    public static final String METADATA_CACHE_TTL_MINUTES_PROPERTY = "metadata_cache_ttl_minutes";
+    public static final String METADATA_CACHE_NEGATIVE_TTL_SECONDS_PROPERTY = "metadata_cache_negative_ttl_seconds";
+    public static final String METADATA_CACHE_MAX_ENTRIES_PROPERTY = "metadata_cache_max_entries";
+
+    private static final int DEFAULT_METADATA_CACHE_TTL_MINUTES = 10;
+    private static final int DEFAULT_METADATA_CACHE_NEGATIVE_TTL_SECONDS = 60;
+    private static final int DEFAULT_METADATA_CACHE_MAX_ENTRIES = 1000;
+
+    private static final int NOT_FOUND = 404;
+
+    private static final ConcurrentMap<String, TfsMetadataCache> caches = new ConcurrentHashMap<String, TfsMetadataCache>();
+
+    private final Map<String, Entry> entries;
+
+    private TfsMetadataCache() {
+        final int maxEntries = Integer.getInteger(METADATA_CACHE_MAX_ENTRIES_PROPERTY, DEFAULT_METADATA_CACHE_MAX_ENTRIES);
+        this.entries = Collections.synchronizedMap(new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Get the cache shared by all clients talking to the same server as the same user
+     */
+    public static TfsMetadataCache forClient(TfsClient client) {
+        String key = String.format("%s|%s", client.getServerUrl(), client.getUsername());
+
+        TfsMetadataCache cache = caches.get(key);
+        if (cache == null) {
+            TfsMetadataCache created = new TfsMetadataCache();
+            cache = caches.putIfAbsent(key, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+
+        return cache;
+    }
+
+    /**
+     * @param project id or name of the team project
+     * @return the project, or null if TFS doesn't know it
+     */
+    public TeamProjectReference getProject(final TfsClient client, final String project) {
+        return get(projectKey(project), new Loader<TeamProjectReference>() {
+            @Override
+            public TeamProjectReference load() {
+                return client.getProjectClient().getProject(project);
+            }
+        });
+    }
+
+    /**
+     * @return the build definition, or null if TFS doesn't know it
+     */
+    public DefinitionReference getDefinition(final TfsClient client, final UUID projectId, final int definitionId) {
+        return get(definitionKey(projectId, definitionId), new Loader<DefinitionReference>() {
+            @Override
+            public DefinitionReference load() {
+                return client.getBuildClient().getDefinition(projectId, definitionId, null, null);
+            }
+        });
+    }
+
+    /**
+     * @return all build definitions of the project, or null if TFS doesn't know the project
+     */
+    public List<DefinitionReference> getDefinitions(final TfsClient client, final UUID projectId) {
+        return get(definitionsKey(projectId), new Loader<List<DefinitionReference>>() {
+            @Override
+            public List<DefinitionReference> load() {
+                return client.getBuildClient().getDefinitions(projectId);
+            }
+        });
+    }
+
+    /**
+     * @return the agent queues of the collection, possibly empty
+     */
+    public List<AgentPoolQueue> getQueues(final TfsClient client) {
+        return get(queuesKey(), new Loader<List<AgentPoolQueue>>() {
+            @Override
+            public List<AgentPoolQueue> load() {
+                return client.getBuildClient().getQueues(null);
+            }
+        });
+    }
+
+    /**
+     * Remember the queues after creating one, so the next build doesn't create it again
+     */
+    public void putQueues(List<AgentPoolQueue> queues) {
+        put(queuesKey(), queues);
+    }
+
+    public void invalidateProject(String project) {
+        entries.remove(projectKey(project));
+    }
+
+    /**
+     * Forget the definition and the definition list of its project
+     */
+    public void invalidateDefinition(UUID projectId, int definitionId) {
+        entries.remove(definitionKey(projectId, definitionId));
+        entries.remove(definitionsKey(projectId));
+    }
+
+    public void invalidateQueues() {
+        entries.remove(queuesKey());
+    }
+
+    /**
+     * Forget everything, e.g. when a build could not be queued with cached ids
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /*
+     * Serve from the cache while fresh, otherwise load.  A null result, or TFS answering 404, is remembered
+     * as a miss (null) for the negative TTL.  Other errors, e.g. expired credentials or a failing server,
+     * say nothing about whether the item exists and are never cached.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T get(String key, Loader<T> loader) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.isExpired()) {
+            return (T) entry.value;
+        }
+
+        T value;
+        ResponseStatus.clear();
+        try {
+            value = loader.load();
+        } catch (VssServiceException e) {
+            if (ResponseStatus.get() != NOT_FOUND) {
+                throw e;
+            }
+
+            logger.info(String.format("Caching %s as not found: %s", key, e.getMessage()));
+            value = null;
+        }
+
+        put(key, value);
+        return value;
+    }
+
+    private void put(String key, Object value) {
+        long ttl = value != null
+                ? TimeUnit.MINUTES.toMillis(Integer.getInteger(METADATA_CACHE_TTL_MINUTES_PROPERTY, DEFAULT_METADATA_CACHE_TTL_MINUTES))
+                : TimeUnit.SECONDS.toMillis(Integer.getInteger(METADATA_CACHE_NEGATIVE_TTL_SECONDS_PROPERTY, DEFAULT_METADATA_CACHE_NEGATIVE_TTL_SECONDS));
+
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+    }
+
+    private static String projectKey(String project) {
+        return "project:" + project;
+    }
+
+    private static String definitionKey(UUID projectId, int definitionId) {
+        return String.format("definition:%s:%d", projectId, definitionId);
+    }
+
+    private static String definitionsKey(UUID projectId) {
+        return "definitions:" + projectId;
+    }
+
+    private static String queuesKey() {
+        return "queues";
+    }
+
+    private interface Loader<T> {
+        T load();
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expires;
+        }
+    }
+}
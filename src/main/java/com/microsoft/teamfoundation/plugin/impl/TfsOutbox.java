@@ -0,0 +1,718 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.ProcessingException;
+
+import com.google.gson.Gson;
+import com.microsoft.teamfoundation.build.webapi.model.Build;
+import com.microsoft.teamfoundation.build.webapi.model.BuildResult;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskOrchestrationPlan;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecord;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecordState;
+import com.microsoft.teamfoundation.plugin.LogUploadCheckpoint;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
+
+/**
+ * Durable outbox for TFS updates that could not be delivered because TFS was unreachable.
+ *
+ * Every TFS build gets its own append-only journal file with one JSON entry per line.  A background
+ * dispatcher replays the journals in order, merging updates of the same build or record into the
+ * latest one and sending consecutive record updates in one call.  What fails because TFS is
+ * unreachable or answers with server errors is kept for the next round; what TFS rejects outright
+ * would fail forever and hold up every later update of the build, so it is moved to a dead letter
+ * file next to the journal and kept there for a week.  Journals survive a Bamboo restart; they are
+ * replayed once an action has registered a client for the same server and user, as the journal
+ * never contains credentials.
+ *
+ * The outbox lives in outbox_dir, by default in the Bamboo (agent) home directory.
+ *
+ * The outbox directory also keeps how far the log upload of each job got, so an upload interrupted by
+ * the agent going away resumes from there instead of sending the log again, and the build containers
+ * waiting in a TfsBuildPool.  Containers a previous run of Bamboo left behind are canceled through the
+ * journal.
+ */
+public final class TfsOutbox {
+    private static final Logger logger = Logger.getLogger(TfsOutbox.class.getName());
+
+    public static final String OUTBOX_DIR_PROPERTY = "outbox_dir";
+    public static final String OUTBOX_REPLAY_SECONDS_PROPERTY = "outbox_replay_seconds";
+
+    private static final String BAMBOO_HOME_PROPERTY = "bamboo.home";
+    private static final String BAMBOO_AGENT_HOME_PROPERTY = "bamboo.agent.home";
+
+    private static final int DEFAULT_OUTBOX_REPLAY_SECONDS = 30;
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String REPLAYING_SUFFIX = ".replaying";
+    private static final String DEAD_LETTER_SUFFIX = ".deadletter";
+    private static final String LOG_OFFSET_SUFFIX = ".offset";
+    private static final String POOLED_BUILD_SUFFIX = ".pooled";
+
+    /*
+     * Checkpoints of uploads that never finished and dead letters are of no use after that long
+     */
+    private static final long MAX_LEFTOVER_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final Gson gson = new Gson();
+
+    /*
+     * Guards the journal files, only held for local file work, never while calling TFS
+     */
+    private static final Object lock = new Object();
+
+    /*
+     * Pooled build files of this JVM, any other one was left behind by an earlier run
+     */
+    private static final Set<String> heldPooledBuilds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tfs-outbox-dispatcher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    static {
+        long interval = Integer.getInteger(OUTBOX_REPLAY_SECONDS_PROPERTY, DEFAULT_OUTBOX_REPLAY_SECONDS);
+        dispatcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replayAll();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to replay TFS outbox", e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    private TfsOutbox() {
+    }
+
+    /**
+     * Whether the failure means TFS could not be reached or kept failing with server errors, as opposed
+     * to TFS rejecting the update
+     */
+    public static boolean isUnreachable(Throwable t) {
+        while (t != null) {
+            if (t instanceof ProcessingException) {
+                return true;
+            }
+            t = t.getCause();
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether updates for this build are waiting in the outbox, newer updates then have to queue up behind them
+     */
+    public static boolean hasPending(TfsClient client, int buildId) {
+        File journal = getJournal(client.getServerUrl(), client.getUsername(), buildId);
+        File replaying = new File(journal.getPath().substring(0, journal.getPath().length() - JOURNAL_SUFFIX.length()) + REPLAYING_SUFFIX);
+
+        return journal.exists() || replaying.exists();
+    }
+
+    /* default */ static void appendStartBuild(TfsClient client, int buildId, UUID projectId, Date startTime) {
+        OutboxEntry entry = OutboxEntry.forClient(OutboxEntry.Type.START_BUILD, client, buildId);
+        entry.projectId = OutboxEntry.toString(projectId);
+        entry.startTime = OutboxEntry.toMillis(startTime);
+
+        append(Collections.singletonList(entry));
+    }
+
+    /**
+     * Keep the result of a build for when TFS is back
+     *
+     * @param projectId id of the team project, or null if it isn't known
+     */
+    public static void appendFinishBuild(TfsClient client, int buildId, UUID projectId, Date finishTime, BuildResult result, String sourceVersion) {
+        appendFinishBuild(client.getServerUrl(), client.getUsername(), buildId, projectId, finishTime, result, sourceVersion);
+    }
+
+    /**
+     * Keep the result of a build for when TFS is back, without a client at hand
+     *
+     * @param serverUrl TFS collection level url the build belongs to
+     * @param username user the build is reported as
+     * @param projectId id of the team project, or null if it isn't known
+     */
+    public static void appendFinishBuild(String serverUrl, String username, int buildId, UUID projectId, Date finishTime,
+                                         BuildResult result, String sourceVersion) {
+        OutboxEntry entry = OutboxEntry.forIdentity(OutboxEntry.Type.FINISH_BUILD, serverUrl, username, buildId);
+        entry.projectId = OutboxEntry.toString(projectId);
+        entry.finishTime = OutboxEntry.toMillis(finishTime);
+        entry.buildResult = result != null ? result.name() : null;
+        entry.sourceVersion = sourceVersion;
+
+        append(Collections.singletonList(entry));
+    }
+
+    /* default */ static void appendRecords(TfsClient client, int buildId, UUID projectId, UUID planId, UUID timelineId,
+                                            List<TimelineRecord> records) {
+        appendRecords(client.getServerUrl(), client.getUsername(), buildId, projectId, planId, timelineId, records);
+    }
+
+    private static void appendRecords(String serverUrl, String username, int buildId, UUID projectId, UUID planId,
+                                      UUID timelineId, List<TimelineRecord> records) {
+        List<OutboxEntry> entries = new ArrayList<OutboxEntry>(records.size());
+        for (TimelineRecord record : records) {
+            OutboxEntry entry = OutboxEntry.forIdentity(OutboxEntry.Type.RECORD, serverUrl, username, buildId);
+            entry.projectId = OutboxEntry.toString(projectId);
+            entry.planId = OutboxEntry.toString(planId);
+            entry.timelineId = OutboxEntry.toString(timelineId);
+            entry.setRecord(record);
+            entries.add(entry);
+        }
+
+        append(entries);
+    }
+
+    /**
+     * Keep the result of a job's task record for when it can be reported
+     *
+     * @param serverUrl TFS collection level url the build belongs to
+     * @param username user the build is reported as
+     * @param coordinates where the record lives, or null if only the build id is known, the timeline is
+     *                    then looked up when the result is delivered
+     */
+    public static void appendTaskResult(String serverUrl, String username, int buildId, TfsBuildCoordinates coordinates,
+                                        UUID taskId, Date finishTime, TaskResult result) {
+        TimelineRecord record = new TimelineRecord();
+        record.setId(taskId);
+        record.setState(TimelineRecordState.COMPLETED);
+        record.setFinishTime(finishTime);
+        record.setResult(result);
+
+        if (coordinates != null) {
+            appendRecords(serverUrl, username, buildId, coordinates.getProjectId(), coordinates.getPlanId(),
+                    coordinates.getTimelineId(), Collections.singletonList(record));
+        } else {
+            appendRecords(serverUrl, username, buildId, null, null, null, Collections.singletonList(record));
+        }
+    }
+
+    /* default */ static void appendLogSegment(TfsClient client, int buildId, UUID projectId, UUID planId, int logId,
+                                               File logFile, long offset) {
+        OutboxEntry entry = OutboxEntry.forClient(OutboxEntry.Type.LOG_SEGMENT, client, buildId);
+        entry.projectId = OutboxEntry.toString(projectId);
+        entry.planId = OutboxEntry.toString(planId);
+        entry.logId = logId;
+        entry.logFile = logFile.getAbsolutePath();
+        entry.offset = offset;
+
+        append(Collections.singletonList(entry));
+    }
+
+    /**
+     * How much of the task's log TFS has acknowledged in an earlier, interrupted upload
+     *
+     * @return offset to resume the upload from, 0 if nothing was uploaded yet
+     */
+    public static long getUploadedLogOffset(TfsClient client, int buildId, UUID taskId) {
+        File file = getLogOffsetFile(client, buildId, taskId);
+        if (!file.isFile()) {
+            return 0;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                return line != null ? Long.parseLong(line.trim()) : 0;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read log upload checkpoint " + file, e);
+        } catch (NumberFormatException e) {
+            logger.warning("Ignoring corrupt log upload checkpoint " + file);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Checkpoint that keeps the progress of the task's log upload on disk
+     */
+    public static LogUploadCheckpoint getLogUploadCheckpoint(TfsClient client, int buildId, UUID taskId) {
+        final File file = getLogOffsetFile(client, buildId, taskId);
+        return new LogUploadCheckpoint() {
+            @Override
+            public void save(long offset) {
+                try {
+                    FileOutputStream fos = new FileOutputStream(file, false);
+                    Writer writer = new OutputStreamWriter(fos, "UTF-8");
+                    try {
+                        writer.write(String.valueOf(offset));
+                        writer.flush();
+                        fos.getFD().sync();
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to save log upload checkpoint " + file, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Forget the progress of the task's log upload, once it is complete
+     */
+    public static void clearLogUploadCheckpoint(TfsClient client, int buildId, UUID taskId) {
+        getLogOffsetFile(client, buildId, taskId).delete();
+    }
+
+    /**
+     * Remember a build container waiting in a TfsBuildPool, so it is canceled even if Bamboo stops before
+     * it is claimed or retired
+     */
+    /* default */ static void holdPooledBuild(TfsClient client, int buildId, UUID projectId) {
+        OutboxEntry entry = OutboxEntry.forClient(OutboxEntry.Type.FINISH_BUILD, client, buildId);
+        entry.projectId = OutboxEntry.toString(projectId);
+        entry.buildResult = BuildResult.CANCELED.name();
+
+        File file = getPooledBuildFile(client.getServerUrl(), client.getUsername(), buildId);
+        synchronized (lock) {
+            heldPooledBuilds.add(file.getName());
+            try {
+                writeEntries(file, Collections.singletonList(entry), false);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to remember pre-queued build " + buildId + ", it is not canceled if Bamboo stops", e);
+            }
+        }
+    }
+
+    /**
+     * Forget a pooled build container, once it was claimed or canceled
+     */
+    /* default */ static void releasePooledBuild(String serverUrl, String username, int buildId) {
+        File file = getPooledBuildFile(serverUrl, username, buildId);
+        synchronized (lock) {
+            file.delete();
+            heldPooledBuilds.remove(file.getName());
+        }
+    }
+
+    /**
+     * Cancel a pooled build container through the journal, when it could not be canceled right away
+     */
+    /* default */ static void retirePooledBuild(String serverUrl, String username, int buildId) {
+        File file = getPooledBuildFile(serverUrl, username, buildId);
+        synchronized (lock) {
+            retirePooledBuild(file);
+            heldPooledBuilds.remove(file.getName());
+        }
+    }
+
+    private static void retirePooledBuild(File file) {
+        try {
+            List<OutboxEntry> entries = readEntries(file);
+            for (OutboxEntry entry : entries) {
+                entry.finishTime = System.currentTimeMillis();
+            }
+            append(entries);
+            file.delete();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read pre-queued build " + file, e);
+        }
+    }
+
+    private static void append(List<OutboxEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        OutboxEntry first = entries.get(0);
+        synchronized (lock) {
+            try {
+                writeEntries(getJournal(first.serverUrl, first.username, first.buildId), entries, true);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Failed to write TFS update to the outbox, it will be lost", e);
+                return;
+            }
+        }
+
+        logger.info(String.format("TFS is unreachable, %d update(s) for build %d saved to the outbox", entries.size(), first.buildId));
+    }
+
+    /*
+     * Replay every journal in the outbox directory, one build after another
+     */
+    private static void replayAll() {
+        File[] files = getOutboxDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(JOURNAL_SUFFIX)) {
+                replay(new File(file.getParentFile(), name.substring(0, name.length() - JOURNAL_SUFFIX.length())));
+            } else if (name.endsWith(REPLAYING_SUFFIX)) {
+                // left over from a replay interrupted by a restart
+                replay(new File(file.getParentFile(), name.substring(0, name.length() - REPLAYING_SUFFIX.length())));
+            } else if (name.endsWith(POOLED_BUILD_SUFFIX)) {
+                synchronized (lock) {
+                    if (!heldPooledBuilds.contains(name)) {
+                        retirePooledBuild(file);
+                    }
+                }
+            } else if ((name.endsWith(LOG_OFFSET_SUFFIX) || name.endsWith(DEAD_LETTER_SUFFIX))
+                    && file.lastModified() + MAX_LEFTOVER_AGE_MS < System.currentTimeMillis()) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void replay(File base) {
+        File journal = new File(base.getPath() + JOURNAL_SUFFIX);
+        File replaying = new File(base.getPath() + REPLAYING_SUFFIX);
+
+        List<OutboxEntry> entries;
+        try {
+            synchronized (lock) {
+                // move the journal aside so new updates can keep being appended while we talk to TFS
+                entries = readEntries(replaying);
+                entries.addAll(readEntries(journal));
+                if (entries.isEmpty()) {
+                    return;
+                }
+
+                writeEntries(replaying, entries, false);
+                journal.delete();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to read TFS outbox journal " + base, e);
+            return;
+        }
+
+        entries = compact(entries);
+
+        OutboxEntry first = entries.get(0);
+        TfsClient client = TfsClientRegistry.getInstance().getAny(first.serverUrl, first.username);
+
+        int delivered = 0;
+        List<OutboxEntry> deadLetters = new ArrayList<OutboxEntry>();
+        List<OutboxEntry> remaining = entries;
+        if (client != null) {
+            try {
+                remaining = Collections.emptyList();
+
+                int next = 0;
+                int singlyUntil = 0;
+                while (next < entries.size()) {
+                    int end = next < singlyUntil ? next + 1 : getBatchEnd(entries, next);
+                    List<OutboxEntry> batch = entries.subList(next, end);
+                    try {
+                        deliver(client, batch);
+                        delivered += batch.size();
+                    } catch (RuntimeException e) {
+                        if (isUnreachable(e)) {
+                            logger.info(String.format("Replaying TFS outbox for build %d stopped: %s", first.buildId, e.getMessage()));
+                            remaining = entries.subList(next, entries.size());
+                            break;
+                        }
+
+                        if (batch.size() > 1) {
+                            // send the records of this batch one by one, to find the ones TFS rejects
+                            singlyUntil = end;
+                            continue;
+                        }
+
+                        logger.log(Level.WARNING, String.format("TFS rejected a %s update for build %d from the outbox, it is moved to the dead letters",
+                                batch.get(0).type, first.buildId), e);
+                        deadLetters.add(batch.get(0));
+                    }
+                    next = end;
+                }
+            } finally {
+                client.release();
+            }
+        }
+
+        try {
+            synchronized (lock) {
+                if (!deadLetters.isEmpty()) {
+                    writeEntries(new File(base.getPath() + DEAD_LETTER_SUFFIX), deadLetters, true);
+                }
+
+                // whatever is left goes before anything appended while we were replaying
+                remaining = new ArrayList<OutboxEntry>(remaining);
+                remaining.addAll(readEntries(journal));
+
+                if (!remaining.isEmpty()) {
+                    writeEntries(journal, remaining, false);
+                } else {
+                    journal.delete();
+                }
+                replaying.delete();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to update TFS outbox journal " + base, e);
+        }
+
+        if (delivered > 0) {
+            logger.info(String.format("Replayed %d update(s) for TFS build %d from the outbox", delivered, first.buildId));
+        }
+    }
+
+    /*
+     * Merge entries into the next one that makes them pointless, keeping the order of the rest
+     */
+    /* default */ static List<OutboxEntry> compact(List<OutboxEntry> entries) {
+        List<OutboxEntry> compacted = new ArrayList<OutboxEntry>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            OutboxEntry entry = entries.get(i);
+
+            OutboxEntry superseding = null;
+            for (int j = i + 1; j < entries.size() && superseding == null; j++) {
+                if (entries.get(j).supersedes(entry)) {
+                    superseding = entries.get(j);
+                }
+            }
+
+            if (superseding != null) {
+                superseding.mergeFrom(entry);
+            } else {
+                compacted.add(entry);
+            }
+        }
+
+        return compacted;
+    }
+
+    /*
+     * Consecutive record updates of the same timeline go in one call, every other entry on its own
+     */
+    /* default */ static int getBatchEnd(List<OutboxEntry> entries, int start) {
+        OutboxEntry first = entries.get(start);
+        if (first.type != OutboxEntry.Type.RECORD) {
+            return start + 1;
+        }
+
+        int maxBatch = Math.max(1, Integer.getInteger(TimelineRecordWriter.RECORD_BATCH_SIZE_PROPERTY,
+                TimelineRecordWriter.DEFAULT_RECORD_BATCH_SIZE));
+        int end = start + 1;
+        while (end < entries.size() && end - start < maxBatch) {
+            OutboxEntry entry = entries.get(end);
+            if (entry.type != OutboxEntry.Type.RECORD || !equal(entry.timelineId, first.timelineId)
+                    || !equal(entry.planId, first.planId) || !equal(entry.projectId, first.projectId)) {
+                break;
+            }
+            end++;
+        }
+
+        return end;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void deliver(TfsClient client, List<OutboxEntry> batch) {
+        OutboxEntry first = batch.get(0);
+        if (first.type != OutboxEntry.Type.RECORD) {
+            deliver(client, first);
+            return;
+        }
+
+        if (first.timelineId == null) {
+            resolveTimeline(client, first);
+        }
+
+        List<TimelineRecord> records = new ArrayList<TimelineRecord>(batch.size());
+        for (OutboxEntry entry : batch) {
+            records.add(entry.getRecord());
+        }
+
+        client.getTaskHttpClient().updateRecords(OutboxEntry.toUUID(first.projectId), "build", records,
+                OutboxEntry.toUUID(first.planId), OutboxEntry.toUUID(first.timelineId));
+    }
+
+    private static void deliver(TfsClient client, OutboxEntry entry) {
+        switch (entry.type) {
+            case START_BUILD:
+                client.getBuildClient().updateBuild(
+                        TfsBuildFacadeImpl.createStartedBuild(entry.buildId, OutboxEntry.toDate(entry.startTime)),
+                        getProjectId(client, entry), entry.buildId);
+                break;
+            case FINISH_BUILD:
+                client.getBuildClient().updateBuild(
+                        TfsBuildFacadeImpl.createFinishedBuild(entry.buildId, OutboxEntry.toDate(entry.finishTime),
+                                entry.buildResult != null ? BuildResult.valueOf(entry.buildResult) : null, entry.sourceVersion),
+                        getProjectId(client, entry), entry.buildId);
+                break;
+            case RECORD:
+                deliver(client, Collections.singletonList(entry));
+                break;
+            case LOG_SEGMENT:
+                deliverLogSegment(client, entry);
+                break;
+            default:
+                logger.warning("Dropping unknown TFS outbox entry " + entry.type);
+        }
+    }
+
+    /*
+     * Entries written without a facade don't know their project, the build does
+     */
+    private static UUID getProjectId(TfsClient client, OutboxEntry entry) {
+        if (entry.projectId != null) {
+            return OutboxEntry.toUUID(entry.projectId);
+        }
+
+        Build build = client.getBuildClient().getBuild(entry.buildId, null);
+        return build.getProject().getId();
+    }
+
+    /*
+     * Records written by jobs that only knew their build id, the build knows its plan and the plan its timeline
+     */
+    private static void resolveTimeline(TfsClient client, OutboxEntry entry) {
+        Build build = client.getBuildClient().getBuild(entry.buildId, null);
+        UUID projectId = build.getProject().getId();
+        UUID planId = build.getOrchestrationPlan().getPlanId();
+        TaskOrchestrationPlan plan = client.getTaskHttpClient().getPlan(projectId, "build", planId);
+
+        entry.projectId = OutboxEntry.toString(projectId);
+        entry.planId = OutboxEntry.toString(planId);
+        entry.timelineId = OutboxEntry.toString(plan.getTimeline().getId());
+    }
+
+    /*
+     * Send the rest of the log in segments, moving the entry's offset along so a failure resumes where it stopped
+     */
+    private static void deliverLogSegment(TfsClient client, OutboxEntry entry) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(entry.logFile, "r");
+            ByteBuffer segment = LogSegmentBuffers.acquire();
+            try {
+                FileChannel channel = file.getChannel();
+                long size = channel.size();
+
+                while (entry.offset < size) {
+                    int length = LogSegmentBuffers.read(channel, entry.offset, size - entry.offset, segment);
+                    if (length == 0) {
+                        break;
+                    }
+
+                    client.getTaskHttpClient().appendLog(new ByteBufferInputStream(segment), OutboxEntry.toUUID(entry.projectId),
+                            "build", OutboxEntry.toUUID(entry.planId), entry.logId);
+                    entry.offset += length;
+                }
+            } finally {
+                LogSegmentBuffers.release(segment);
+                file.close();
+            }
+        } catch (IOException e) {
+            // the log is gone, there is nothing left to send
+            logger.warning("Dropping log upload from the TFS outbox: " + e.getMessage());
+        }
+    }
+
+    private static File getJournal(String serverUrl, String username, int buildId) {
+        return new File(getOutboxDir(), String.format("%s-%d%s", getOwner(serverUrl, username), buildId, JOURNAL_SUFFIX));
+    }
+
+    private static File getLogOffsetFile(TfsClient client, int buildId, UUID taskId) {
+        return new File(getOutboxDir(), String.format("%s-%d-%s%s", getOwner(client.getServerUrl(), client.getUsername()),
+                buildId, taskId, LOG_OFFSET_SUFFIX));
+    }
+
+    private static File getPooledBuildFile(String serverUrl, String username, int buildId) {
+        return new File(getOutboxDir(), String.format("%s-%d%s", getOwner(serverUrl, username), buildId, POOLED_BUILD_SUFFIX));
+    }
+
+    private static String getOwner(String serverUrl, String username) {
+        return Integer.toHexString(String.format("%s|%s", serverUrl, username).hashCode());
+    }
+
+    /*
+     * The temporary directory is cleaned on many systems at reboot, the Bamboo home survives it
+     */
+    private static File getOutboxDir() {
+        String dir = System.getProperty(OUTBOX_DIR_PROPERTY);
+        File outboxDir;
+        if (dir != null) {
+            outboxDir = new File(dir);
+        } else {
+            String home = System.getProperty(BAMBOO_HOME_PROPERTY, System.getProperty(BAMBOO_AGENT_HOME_PROPERTY));
+            outboxDir = home != null
+                    ? new File(home, "tfs-connector-outbox")
+                    : new File(System.getProperty("java.io.tmpdir"), "tfs-connector-outbox");
+        }
+        outboxDir.mkdirs();
+
+        return outboxDir;
+    }
+
+    private static List<OutboxEntry> readEntries(File file) throws IOException {
+        List<OutboxEntry> entries = new ArrayList<OutboxEntry>();
+        if (!file.isFile()) {
+            return entries;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    entries.add(gson.fromJson(line, OutboxEntry.class));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return entries;
+    }
+
+    private static void writeEntries(File file, List<OutboxEntry> entries, boolean append) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file, append);
+        Writer writer = new OutputStreamWriter(fos, "UTF-8");
+        try {
+            for (OutboxEntry entry : entries) {
+                writer.write(gson.toJson(entry));
+                writer.write('\n');
+            }
+            writer.flush();
+            fos.getFD().sync();
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Plugin owned executor for reporting results to TFS, so Bamboo's threads never wait on TFS after a
+ * job or a chain has finished.
+ *
+ * Reports for the same TFS build run one after another in submission order, which only holds within
+ * this JVM: a job on a remote agent may still be reporting when the server finishes the build, its
+ * record is then completed a second time with the job's own result.  At most reporting_queue_limit
+ * reports may wait, beyond that a report's overflow action runs instead (usually saving it to the
+ * TfsOutbox), or it is dropped when reporting_overflow_policy is "drop".  Waiting reports are drained
+ * when the plugin is disabled or the agent shuts down.
+ */
+public final class TfsReporter {
+    private static final Logger logger = Logger.getLogger(TfsReporter.class.getName());
+
+    public static final String REPORTING_POOL_SIZE_PROPERTY = "reporting_pool_size";
+    public static final String REPORTING_QUEUE_LIMIT_PROPERTY = "reporting_queue_limit";
+    public static final String REPORTING_OVERFLOW_POLICY_PROPERTY = "reporting_overflow_policy";
+
+    private static final int DEFAULT_REPORTING_POOL_SIZE = 4;
+    private static final int DEFAULT_REPORTING_QUEUE_LIMIT = 1000;
+    private static final String OVERFLOW_POLICY_DROP = "drop";
+
+    private static final ThreadPoolExecutor pool = createPool();
+
+    private static final ConcurrentMap<Object, SerialQueue> serialQueues = new ConcurrentHashMap<Object, SerialQueue>();
+
+    /*
+     * Reports accepted but not finished yet
+     */
+    private static final AtomicInteger pending = new AtomicInteger();
+
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong overflowed = new AtomicLong();
+
+    private static volatile boolean draining;
+
+    private TfsReporter() {
+    }
+
+    /**
+     * Report to TFS in the background, after everything reported earlier for the same TFS build
+     *
+     * @param tfsBuildId ordering key
+     * @param description what is reported, for the logs
+     * @param work TFS calls to make
+     * @param overflow what to do instead when too many reports are waiting, may be null
+     */
+    public static void report(int tfsBuildId, final String description, final Runnable work, Runnable overflow) {
+        int limit = Integer.getInteger(REPORTING_QUEUE_LIMIT_PROPERTY, DEFAULT_REPORTING_QUEUE_LIMIT);
+        if (draining) {
+            overflow(description, overflow);
+            return;
+        }
+
+        if (pending.incrementAndGet() > limit) {
+            pending.decrementAndGet();
+            overflow(description, overflow);
+            return;
+        }
+
+        submitted.incrementAndGet();
+        SerialQueue.submit(serialQueues, tfsBuildId, pool, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work.run();
+                    completed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    logger.log(Level.WARNING, "Failed to report " + description + " to TFS", e);
+                } finally {
+                    synchronized (pending) {
+                        pending.decrementAndGet();
+                        pending.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop taking reports and wait for the waiting ones to be delivered
+     *
+     * @param timeout how long to wait at most
+     * @param unit
+     * @return true if everything was delivered in time
+     */
+    public static boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        draining = true;
+
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                pending.wait(remaining);
+            }
+        }
+
+        boolean drained = pending.get() <= 0;
+        logger.info(String.format("TFS reporting drained (%s): %s", drained ? "complete" : "timed out", getStats()));
+
+        return drained;
+    }
+
+    /**
+     * Take reports again, e.g. when the plugin is enabled again in the same class loader
+     */
+    public static void resume() {
+        draining = false;
+    }
+
+    public static int getQueueDepth() {
+        return Math.max(0, pending.get());
+    }
+
+    public static String getStats() {
+        return String.format("queued %d, submitted %d, completed %d, failed %d, overflowed %d",
+                getQueueDepth(), submitted.get(), completed.get(), failed.get(), overflowed.get());
+    }
+
+    private static void overflow(String description, Runnable overflow) {
+        overflowed.incrementAndGet();
+
+        String policy = System.getProperty(REPORTING_OVERFLOW_POLICY_PROPERTY);
+        if (overflow == null || OVERFLOW_POLICY_DROP.equalsIgnoreCase(policy)) {
+            logger.warning(String.format("Too many TFS reports waiting, dropped %s (%s)", description, getStats()));
+            return;
+        }
+
+        logger.warning(String.format("Too many TFS reports waiting, saving %s for later (%s)", description, getStats()));
+        try {
+            overflow.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to save " + description + " for later", e);
+        }
+    }
+
+    private static ThreadPoolExecutor createPool() {
+        int poolSize = Integer.getInteger(REPORTING_POOL_SIZE_PROPERTY, DEFAULT_REPORTING_POOL_SIZE);
+
+        // the queue limit is enforced on reports, the pool itself only ever sees one task per TFS build
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "tfs-reporter-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+}
@@ -0,0 +1,35 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts and drains the TfsReporter along with the plugin, so reports still waiting when the plugin
+ * is disabled or upgraded get a chance to reach TFS.  Pre-queued build containers nobody claimed are
+ * completed on the way out.
+ */
+public class TfsReportingLifecycle implements InitializingBean, DisposableBean {
+
+    public static final String REPORTING_DRAIN_SECONDS_PROPERTY = "reporting_drain_seconds";
+
+    private static final int DEFAULT_REPORTING_DRAIN_SECONDS = 30;
+
+    @Override
+    public void afterPropertiesSet() {
+        TfsReporter.resume();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        try {
+            TfsReporter.drain(Integer.getInteger(REPORTING_DRAIN_SECONDS_PROPERTY, DEFAULT_REPORTING_DRAIN_SECONDS), TimeUnit.SECONDS);
+        } finally {
+            TfsBuildPool.retireAll();
+        }
+    }
+}
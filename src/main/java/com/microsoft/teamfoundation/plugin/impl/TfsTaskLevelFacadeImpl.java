@@ -4,12 +4,8 @@
 package com.microsoft.teamfoundation.plugin.impl;
 
 import com.microsoft.teamfoundation.build.webapi.model.Build;
-import com.microsoft.teamfoundation.plugin.TfsBuildFacade;
+import com.microsoft.teamfoundation.plugin.TfsBuildCoordinates;
 
-import java.io.IOException;
-import java.util.Date;
-import java.util.List;
-import java.util.UUID;
 import java.util.logging.Logger;
 
 /**
@@ -22,21 +18,20 @@ public class TfsTaskLevelFacadeImpl extends TfsBuildFacadeImpl {
     private static final Logger logger = Logger.getLogger(TfsTaskLevelFacadeImpl.class.getName());
 
     public TfsTaskLevelFacadeImpl(final Build tfsBuild, final TfsClient tfsClient) {
-        super(tfsBuild, null, tfsClient);
+        super(tfsBuild, null, tfsClient, false);
     }
 
-    @Override
-    public void startBuild() {
-        logger.warning("Job level function callled in a task only context, please check your code!");
+    public TfsTaskLevelFacadeImpl(final TfsBuildCoordinates coordinates, final TfsClient tfsClient) {
+        super(coordinates, null, tfsClient);
     }
 
     @Override
-    public void finishBuild() {
+    public void startBuild() {
         logger.warning("Job level function callled in a task only context, please check your code!");
     }
 
     @Override
-    public void uploadJobLog(List<String> logLines) throws IOException  {
+    public void finishBuild() {
         logger.warning("Job level function callled in a task only context, please check your code!");
     }
 }
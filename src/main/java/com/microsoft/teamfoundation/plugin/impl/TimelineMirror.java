@@ -0,0 +1,165 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecord;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecordState;
+
+/**
+ * In memory index of the records of a single TFS timeline.
+ *
+ * The index is kept up to date from the writes of this JVM and only goes to the server when it misses
+ * a record.  Bamboo server and agents each write the same timeline from their own JVM though, so a
+ * refresh that asks for the records changed since the highest change id seen here can miss records
+ * another JVM wrote earlier; callers fall back to reading the whole timeline in that case.
+ *
+ * Updates are merged, fields an update leaves out are kept from what was known before.
+ */
+/* default */ class TimelineMirror {
+
+    private static final int MAX_MIRRORED_TIMELINES = 256;
+
+    /*
+     * Mirrors shared by all facades in this JVM, least recently used timelines are dropped first
+     */
+    private static final Map<UUID, TimelineMirror> mirrors = Collections.synchronizedMap(
+            new LinkedHashMap<UUID, TimelineMirror>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, TimelineMirror> eldest) {
+                    return size() > MAX_MIRRORED_TIMELINES;
+                }
+            });
+
+    private final ConcurrentMap<UUID, TimelineRecord> records = new ConcurrentHashMap<UUID, TimelineRecord>();
+
+    private volatile UUID jobRecordId;
+
+    private int lastChangeId;
+
+    /* default */ static TimelineMirror forTimeline(UUID timelineId) {
+        synchronized (mirrors) {
+            TimelineMirror mirror = mirrors.get(timelineId);
+            if (mirror == null) {
+                mirror = new TimelineMirror();
+                mirrors.put(timelineId, mirror);
+            }
+
+            return mirror;
+        }
+    }
+
+    /* default */ static void release(UUID timelineId) {
+        mirrors.remove(timelineId);
+    }
+
+    /* default */ TimelineRecord get(UUID recordId) {
+        return recordId == null ? null : records.get(recordId);
+    }
+
+    /* default */ TimelineRecord getJobRecord() {
+        return get(jobRecordId);
+    }
+
+    /**
+     * Records that have not been completed yet
+     */
+    /* default */ List<TimelineRecord> getOpenRecords() {
+        List<TimelineRecord> open = new ArrayList<TimelineRecord>();
+        for (TimelineRecord record : records.values()) {
+            if (record.getState() != TimelineRecordState.COMPLETED) {
+                open.add(record);
+            }
+        }
+
+        return open;
+    }
+
+    /* default */ List<TimelineRecord> getChildren(UUID parentId) {
+        List<TimelineRecord> children = new ArrayList<TimelineRecord>();
+        for (TimelineRecord record : records.values()) {
+            if (parentId.equals(record.getParentId())) {
+                children.add(record);
+            }
+        }
+
+        return children;
+    }
+
+    /* default */ synchronized int getLastChangeId() {
+        return lastChangeId;
+    }
+
+    /**
+     * Merge records that we wrote or that the server reported as changed
+     */
+    /* default */ synchronized void update(List<TimelineRecord> changed, String jobRecordType) {
+        if (changed == null) {
+            return;
+        }
+
+        for (TimelineRecord record : changed) {
+            if (record == null || record.getId() == null) {
+                continue;
+            }
+
+            TimelineRecord known = records.get(record.getId());
+            if (known != null && known != record) {
+                merge(known, record);
+            }
+            records.put(record.getId(), record);
+
+            Integer changeId = record.getChangeId();
+            if (changeId != null) {
+                lastChangeId = Math.max(lastChangeId, changeId);
+            }
+
+            if (jobRecordId == null && jobRecordType.equalsIgnoreCase(record.getType())) {
+                jobRecordId = record.getId();
+            }
+        }
+    }
+
+    /*
+     * Fill the fields a partial update leaves out from the known record.  The known record is never
+     * changed, the write-behind buffer may still hold it.
+     */
+    private static void merge(TimelineRecord known, TimelineRecord update) {
+        if (update.getParentId() == null) {
+            update.setParentId(known.getParentId());
+        }
+        if (update.getType() == null) {
+            update.setType(known.getType());
+        }
+        if (update.getName() == null) {
+            update.setName(known.getName());
+        }
+        if (update.getState() == null) {
+            update.setState(known.getState());
+        }
+        if (update.getResult() == null) {
+            update.setResult(known.getResult());
+        }
+        if (update.getStartTime() == null) {
+            update.setStartTime(known.getStartTime());
+        }
+        if (update.getFinishTime() == null) {
+            update.setFinishTime(known.getFinishTime());
+        }
+        if (update.getWorkerName() == null) {
+            update.setWorkerName(known.getWorkerName());
+        }
+        if (update.getLog() == null) {
+            update.setLog(known.getLog());
+        }
+    }
+}
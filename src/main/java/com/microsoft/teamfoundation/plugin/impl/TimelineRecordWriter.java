@@ -0,0 +1,257 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecord;
+
+/**
+ * Write-behind buffer for the record updates of a single TFS timeline.
+ *
+ * Successive changes to the same record (pending, in progress, completed) are coalesced into the latest
+ * state, and pending records are sent in one updateRecords call once the batch is full, once the flush
+ * delay has passed, or when a flush is forced.  Batches that can't reach TFS go to the TfsOutbox, batches
+ * TFS turned down are kept for the next flush.
+ */
+/* default */ class TimelineRecordWriter {
+    private static final Logger logger = Logger.getLogger(TimelineRecordWriter.class.getName());
+
+    public static final String RECORD_BATCH_SIZE_PROPERTY = "timeline_record_batch_size";
+    public static final String RECORD_FLUSH_DELAY_MS_PROPERTY = "timeline_record_flush_delay_ms";
+
+    /* default */ static final int DEFAULT_RECORD_BATCH_SIZE = 50;
+    private static final int DEFAULT_RECORD_FLUSH_DELAY_MS = 1000;
+
+    private static final ConcurrentMap<UUID, TimelineRecordWriter> writers = new ConcurrentHashMap<UUID, TimelineRecordWriter>();
+
+    /*
+     * How many jobs and builds of this JVM still use the writer of a timeline, guarded by itself
+     */
+    private static final Map<UUID, Integer> holds = new HashMap<UUID, Integer>();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "tfs-timeline-record-writer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final int buildId;
+    private final UUID projectId;
+    private final UUID planId;
+    private final UUID timelineId;
+
+    /*
+     * Leased by the writer until it is released, guarded by this
+     */
+    private TfsClient client;
+
+    /*
+     * Latest state of every record waiting to be sent, in the order they were first changed
+     */
+    private final Map<UUID, TimelineRecord> pending = new LinkedHashMap<UUID, TimelineRecord>();
+
+    /*
+     * Serializes flushes so an older state of a record can never overtake a newer one
+     */
+    private final Object flushLock = new Object();
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    private TimelineRecordWriter(int buildId, UUID projectId, UUID planId, UUID timelineId, TfsClient client) {
+        this.buildId = buildId;
+        this.projectId = projectId;
+        this.planId = planId;
+        this.timelineId = timelineId;
+        this.client = client.lease();
+    }
+
+    /* default */ static TimelineRecordWriter forTimeline(int buildId, UUID projectId, UUID planId, UUID timelineId, TfsClient client) {
+        TimelineRecordWriter writer = writers.get(timelineId);
+        if (writer == null) {
+            TimelineRecordWriter created = new TimelineRecordWriter(buildId, projectId, planId, timelineId, client);
+            writer = writers.putIfAbsent(timelineId, created);
+            if (writer == null) {
+                writer = created;
+            } else {
+                created.getClient().release();
+            }
+        }
+
+        // always send with the most recently handed out client
+        writer.useClient(client);
+        return writer;
+    }
+
+    /**
+     * Keep the writer of this timeline until the matching release, jobs and the build share it
+     */
+    /* default */ static void hold(UUID timelineId) {
+        synchronized (holds) {
+            Integer count = holds.get(timelineId);
+            holds.put(timelineId, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Flush the writer of this timeline, and forget it once nobody holds it anymore
+     *
+     * @return true if the timeline is no longer held in this JVM
+     */
+    /* default */ static boolean release(UUID timelineId) {
+        boolean last;
+        synchronized (holds) {
+            Integer count = holds.get(timelineId);
+            last = count == null || count <= 1;
+            if (last) {
+                holds.remove(timelineId);
+            } else {
+                holds.put(timelineId, count - 1);
+            }
+        }
+
+        TimelineRecordWriter writer = last ? writers.remove(timelineId) : writers.get(timelineId);
+        if (writer != null) {
+            try {
+                writer.flush();
+            } finally {
+                if (last) {
+                    writer.getClient().release();
+                }
+            }
+        }
+
+        return last;
+    }
+
+    private synchronized void useClient(TfsClient client) {
+        if (client != this.client) {
+            TfsClient previous = this.client;
+            this.client = client.lease();
+            previous.release();
+        }
+    }
+
+    private synchronized TfsClient getClient() {
+        return client;
+    }
+
+    /* default */ void write(TimelineRecord record) {
+        boolean full;
+        synchronized (this) {
+            pending.put(record.getId(), record);
+
+            full = pending.size() >= Integer.getInteger(RECORD_BATCH_SIZE_PROPERTY, DEFAULT_RECORD_BATCH_SIZE);
+            if (!full && scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            flush();
+                        } catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "Failed to send timeline record updates to TFS", e);
+                        }
+                    }
+                }, Integer.getInteger(RECORD_FLUSH_DELAY_MS_PROPERTY, DEFAULT_RECORD_FLUSH_DELAY_MS), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Send these records together with everything pending in a single call, whatever the batch size
+     */
+    /* default */ void writeAll(List<TimelineRecord> records) {
+        synchronized (this) {
+            for (TimelineRecord record : records) {
+                pending.put(record.getId(), record);
+            }
+        }
+
+        flush();
+    }
+
+    /**
+     * Send all pending record updates now
+     */
+    /* default */ void flush() {
+        synchronized (flushLock) {
+            List<TimelineRecord> batch = drain();
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            // a newer client may be handed in meanwhile, this one must stay open until the batch is sent
+            TfsClient client = getClient().lease();
+            List<TimelineRecord> updated;
+            try {
+                // queue up behind updates already waiting in the outbox, so they can't overwrite newer states
+                if (TfsOutbox.hasPending(client, buildId)) {
+                    TfsOutbox.appendRecords(client, buildId, projectId, planId, timelineId, batch);
+                    return;
+                }
+
+                updated = client.getTaskHttpClient().updateRecords(projectId, "build", batch, planId, timelineId);
+            } catch (RuntimeException e) {
+                if (!TfsOutbox.isUnreachable(e)) {
+                    requeue(batch);
+                    throw e;
+                }
+
+                TfsOutbox.appendRecords(client, buildId, projectId, planId, timelineId, batch);
+                return;
+            } finally {
+                client.release();
+            }
+
+            // prefer what the server returned, it carries the new change ids
+            TimelineMirror.forTimeline(timelineId).update(updated != null ? updated : batch, TfsBuildFacadeImpl.JOB_RECORD_TYPE);
+        }
+    }
+
+    private synchronized List<TimelineRecord> drain() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+
+        List<TimelineRecord> batch = new ArrayList<TimelineRecord>(pending.values());
+        pending.clear();
+
+        return batch;
+    }
+
+    /*
+     * Put a batch that failed back in front of what was written meanwhile, newer states of a record win
+     */
+    private synchronized void requeue(List<TimelineRecord> batch) {
+        Map<UUID, TimelineRecord> newer = new LinkedHashMap<UUID, TimelineRecord>(pending);
+        pending.clear();
+        for (TimelineRecord record : batch) {
+            pending.put(record.getId(), record);
+        }
+        pending.putAll(newer);
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    @After
+    public void clearProperties() {
+        System.clearProperty(CircuitBreaker.CIRCUIT_FAILURE_THRESHOLD_PROPERTY);
+        System.clearProperty(CircuitBreaker.CIRCUIT_OPEN_SECONDS_PROPERTY);
+    }
+
+    @Test
+    public void sameBreakerPerHost() {
+        String host = newHost();
+        assertSame(CircuitBreaker.forHost(host), CircuitBreaker.forHost(host));
+    }
+
+    @Test
+    public void staysClosedBelowThreshold() {
+        System.setProperty(CircuitBreaker.CIRCUIT_FAILURE_THRESHOLD_PROPERTY, "3");
+        CircuitBreaker breaker = CircuitBreaker.forHost(newHost());
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+
+        // a success resets the count
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void opensAtThreshold() {
+        System.setProperty(CircuitBreaker.CIRCUIT_FAILURE_THRESHOLD_PROPERTY, "2");
+        CircuitBreaker breaker = CircuitBreaker.forHost(newHost());
+
+        breaker.recordFailure();
+        breaker.recordFailure();
+
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void letsOneProbeThroughOnceOpenPeriodPassed() {
+        System.setProperty(CircuitBreaker.CIRCUIT_FAILURE_THRESHOLD_PROPERTY, "1");
+        System.setProperty(CircuitBreaker.CIRCUIT_OPEN_SECONDS_PROPERTY, "0");
+        CircuitBreaker breaker = CircuitBreaker.forHost(newHost());
+
+        breaker.recordFailure();
+
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void successfulProbeCloses() {
+        System.setProperty(CircuitBreaker.CIRCUIT_FAILURE_THRESHOLD_PROPERTY, "1");
+        System.setProperty(CircuitBreaker.CIRCUIT_OPEN_SECONDS_PROPERTY, "0");
+        CircuitBreaker breaker = CircuitBreaker.forHost(newHost());
+
+        breaker.recordFailure();
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeReopens() {
+        System.setProperty(CircuitBreaker.CIRCUIT_FAILURE_THRESHOLD_PROPERTY, "5");
+        System.setProperty(CircuitBreaker.CIRCUIT_OPEN_SECONDS_PROPERTY, "0");
+        CircuitBreaker breaker = CircuitBreaker.forHost(newHost());
+
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure();
+        }
+        assertTrue(breaker.allowRequest());
+
+        // the probe alone re-opens the circuit, whatever the threshold
+        System.setProperty(CircuitBreaker.CIRCUIT_OPEN_SECONDS_PROPERTY, "60");
+        breaker.recordFailure();
+
+        assertFalse(breaker.allowRequest());
+    }
+
+    private static String newHost() {
+        return UUID.randomUUID() + ".example.com";
+    }
+}
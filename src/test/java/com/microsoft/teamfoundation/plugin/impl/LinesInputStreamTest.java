@@ -0,0 +1,96 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LinesInputStreamTest {
+
+    private static final String SEPARATOR = String.format("%n");
+
+    @Test
+    public void noLinesIsEmpty() throws IOException {
+        LinesInputStream in = new LinesInputStream(Collections.<String>emptyList());
+
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[16], 0, 16));
+    }
+
+    @Test
+    public void everyLineIsFollowedBySeparator() throws IOException {
+        String text = readAll(new LinesInputStream(Arrays.asList("first", "", "third")));
+
+        assertEquals("first" + SEPARATOR + SEPARATOR + "third" + SEPARATOR, text);
+    }
+
+    @Test
+    public void nullLineIsEmpty() throws IOException {
+        String text = readAll(new LinesInputStream(Arrays.asList("a", null, "b")));
+
+        assertEquals("a" + SEPARATOR + SEPARATOR + "b" + SEPARATOR, text);
+    }
+
+    @Test
+    public void multiByteCharactersSpanningBuffersAreKept() throws IOException {
+        // much longer than the 8k buffer, with 2, 3 and 4 byte characters landing on its boundaries
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            line.append("\u00e9\u20ac\ud83d\ude00x");
+        }
+        List<String> lines = Arrays.asList(line.toString(), "after");
+
+        String text = readAll(new LinesInputStream(lines));
+
+        assertEquals(line + SEPARATOR + "after" + SEPARATOR, text);
+    }
+
+    @Test
+    public void byteReadsMatchBulkReads() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            lines.add("line " + i + " \u00fc");
+        }
+
+        LinesInputStream in = new LinesInputStream(lines);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            bytes.write(b);
+        }
+        in.close();
+
+        assertEquals(readAll(new LinesInputStream(lines)), new String(bytes.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void closedStreamIsAtEnd() throws IOException {
+        LinesInputStream in = new LinesInputStream(Arrays.asList("line"));
+        in.close();
+
+        assertEquals(-1, in.read());
+        assertEquals(0, in.available());
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1000];
+        int read;
+        while ((read = in.read(chunk, 0, chunk.length)) != -1) {
+            bytes.write(chunk, 0, read);
+        }
+        in.close();
+
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+}
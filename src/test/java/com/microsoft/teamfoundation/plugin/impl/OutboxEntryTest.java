@@ -0,0 +1,123 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class OutboxEntryTest {
+
+    @Test
+    public void laterBuildUpdateSupersedesEarlierOne() {
+        assertTrue(entry(OutboxEntry.Type.FINISH_BUILD, 1).supersedes(entry(OutboxEntry.Type.FINISH_BUILD, 1)));
+        assertTrue(entry(OutboxEntry.Type.START_BUILD, 1).supersedes(entry(OutboxEntry.Type.START_BUILD, 1)));
+    }
+
+    @Test
+    public void otherBuildsAndTypesAreNotSuperseded() {
+        assertFalse(entry(OutboxEntry.Type.FINISH_BUILD, 2).supersedes(entry(OutboxEntry.Type.FINISH_BUILD, 1)));
+        assertFalse(entry(OutboxEntry.Type.FINISH_BUILD, 1).supersedes(entry(OutboxEntry.Type.START_BUILD, 1)));
+    }
+
+    @Test
+    public void logSegmentsAreNeverSuperseded() {
+        assertFalse(entry(OutboxEntry.Type.LOG_SEGMENT, 1).supersedes(entry(OutboxEntry.Type.LOG_SEGMENT, 1)));
+    }
+
+    @Test
+    public void recordUpdatesSupersedeOnlyTheSameRecord() {
+        OutboxEntry first = record(1, "a");
+        assertTrue(record(1, "a").supersedes(first));
+        assertFalse(record(1, "b").supersedes(first));
+    }
+
+    @Test
+    public void mergeKeepsFieldsOfTheEarlierUpdate() {
+        OutboxEntry created = record(1, "a");
+        created.name = "compile";
+        created.parentId = "parent";
+        created.state = "PENDING";
+        created.logId = 7;
+
+        OutboxEntry finished = record(1, "a");
+        finished.state = "COMPLETED";
+        finished.taskResult = "SUCCEEDED";
+
+        finished.mergeFrom(created);
+
+        assertEquals("compile", finished.name);
+        assertEquals("parent", finished.parentId);
+        assertEquals(Integer.valueOf(7), finished.logId);
+        assertEquals("COMPLETED", finished.state);
+        assertEquals("SUCCEEDED", finished.taskResult);
+    }
+
+    @Test
+    public void compactMergesRecordUpdatesIntoTheLatest() {
+        OutboxEntry created = record(1, "a");
+        created.name = "compile";
+        OutboxEntry other = record(1, "b");
+        OutboxEntry finished = record(1, "a");
+        finished.state = "COMPLETED";
+
+        List<OutboxEntry> compacted = TfsOutbox.compact(new ArrayList<OutboxEntry>(Arrays.asList(created, other, finished)));
+
+        assertEquals(2, compacted.size());
+        assertSame(other, compacted.get(0));
+        assertSame(finished, compacted.get(1));
+        assertEquals("compile", finished.name);
+        assertEquals("COMPLETED", finished.state);
+    }
+
+    @Test
+    public void compactKeepsOnlyTheLastBuildResult() {
+        OutboxEntry start = entry(OutboxEntry.Type.START_BUILD, 1);
+        OutboxEntry firstResult = entry(OutboxEntry.Type.FINISH_BUILD, 1);
+        OutboxEntry lastResult = entry(OutboxEntry.Type.FINISH_BUILD, 1);
+
+        List<OutboxEntry> compacted = TfsOutbox.compact(Arrays.asList(start, firstResult, lastResult));
+
+        assertEquals(Arrays.asList(start, lastResult), compacted);
+    }
+
+    @Test
+    public void batchesConsecutiveRecordsOfOneTimeline() {
+        OutboxEntry start = entry(OutboxEntry.Type.START_BUILD, 1);
+        OutboxEntry a = record(1, "a");
+        OutboxEntry b = record(1, "b");
+        OutboxEntry otherTimeline = record(1, "c");
+        otherTimeline.timelineId = "other";
+        OutboxEntry log = entry(OutboxEntry.Type.LOG_SEGMENT, 1);
+        List<OutboxEntry> entries = Arrays.asList(start, a, b, otherTimeline, log);
+
+        assertEquals(1, TfsOutbox.getBatchEnd(entries, 0));
+        assertEquals(3, TfsOutbox.getBatchEnd(entries, 1));
+        assertEquals(4, TfsOutbox.getBatchEnd(entries, 3));
+        assertEquals(5, TfsOutbox.getBatchEnd(entries, 4));
+    }
+
+    private static OutboxEntry entry(OutboxEntry.Type type, int buildId) {
+        OutboxEntry entry = new OutboxEntry();
+        entry.type = type;
+        entry.buildId = buildId;
+        return entry;
+    }
+
+    private static OutboxEntry record(int buildId, String recordId) {
+        OutboxEntry entry = entry(OutboxEntry.Type.RECORD, buildId);
+        entry.recordId = recordId;
+        entry.projectId = "project";
+        entry.planId = "plan";
+        entry.timelineId = "timeline";
+        return entry;
+    }
+}
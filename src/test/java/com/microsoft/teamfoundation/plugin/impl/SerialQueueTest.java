@@ -0,0 +1,151 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SerialQueueTest {
+
+    private final ConcurrentMap<Object, SerialQueue> queues = new ConcurrentHashMap<Object, SerialQueue>();
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void runsTasksOfOneKeyInOrder() throws InterruptedException {
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            SerialQueue.submit(queues, "build", pool, new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(n);
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), ran.get(i));
+        }
+    }
+
+    @Test
+    public void runsOneTaskOfAKeyAtATime() throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(50);
+
+        for (int i = 0; i < 50; i++) {
+            SerialQueue.submit(queues, "build", pool, new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                    Thread.yield();
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void otherKeysDontWait() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch otherRan = new CountDownLatch(1);
+
+        SerialQueue.submit(queues, "slow", pool, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        SerialQueue.submit(queues, "fast", pool, new Runnable() {
+            @Override
+            public void run() {
+                otherRan.countDown();
+            }
+        });
+
+        assertTrue(otherRan.await(10, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void executorRunningOnCallerCanSubmitMore() {
+        // like CallerRunsPolicy once the pool is full, the submitting thread runs the queue itself
+        Executor callerRuns = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        final List<String> ran = new ArrayList<String>();
+
+        SerialQueue.submit(queues, "build", callerRuns, new Runnable() {
+            @Override
+            public void run() {
+                ran.add("first");
+                SerialQueue.submit(queues, "build", pool, new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.add("nested");
+                    }
+                });
+            }
+        });
+
+        assertEquals(2, ran.size());
+        assertEquals("first", ran.get(0));
+        assertEquals("nested", ran.get(1));
+    }
+
+    @Test
+    public void retiredQueueIsRemoved() {
+        Executor callerRuns = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        SerialQueue.submit(queues, "build", callerRuns, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+
+        assertTrue(queues.isEmpty());
+    }
+}
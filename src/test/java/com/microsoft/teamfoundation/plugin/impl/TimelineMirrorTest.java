@@ -0,0 +1,93 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.teamfoundation.plugin.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TaskResult;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecord;
+import com.microsoft.teamfoundation.distributedtask.webapi.model.TimelineRecordState;
+
+public class TimelineMirrorTest {
+
+    private final UUID timelineId = UUID.randomUUID();
+
+    @After
+    public void releaseMirror() {
+        TimelineMirror.release(timelineId);
+    }
+
+    @Test
+    public void partialUpdateKeepsKnownFields() {
+        UUID jobId = UUID.randomUUID();
+        Date startTime = new Date();
+
+        TimelineRecord created = record(UUID.randomUUID(), jobId, "Task", 3);
+        created.setName("compile");
+        created.setStartTime(startTime);
+        created.setState(TimelineRecordState.IN_PROGRESS);
+
+        TimelineRecord finished = new TimelineRecord();
+        finished.setId(created.getId());
+        finished.setState(TimelineRecordState.COMPLETED);
+        finished.setResult(TaskResult.SUCCEEDED);
+
+        TimelineMirror mirror = TimelineMirror.forTimeline(timelineId);
+        mirror.update(Collections.singletonList(created), "Job");
+        mirror.update(Collections.singletonList(finished), "Job");
+
+        TimelineRecord merged = mirror.get(created.getId());
+        assertEquals("compile", merged.getName());
+        assertEquals(jobId, merged.getParentId());
+        assertEquals(startTime, merged.getStartTime());
+        assertEquals(TimelineRecordState.COMPLETED, merged.getState());
+        assertEquals(TaskResult.SUCCEEDED, merged.getResult());
+
+        // the earlier object may still be queued for sending and must not change
+        assertEquals(TimelineRecordState.IN_PROGRESS, created.getState());
+        assertNull(created.getResult());
+    }
+
+    @Test
+    public void tracksJobRecordAndChildren() {
+        TimelineRecord job = record(UUID.randomUUID(), null, "Job", 1);
+        TimelineRecord first = record(UUID.randomUUID(), job.getId(), "Task", 2);
+        TimelineRecord second = record(UUID.randomUUID(), job.getId(), "Task", 5);
+
+        TimelineMirror mirror = TimelineMirror.forTimeline(timelineId);
+        mirror.update(Arrays.asList(job, first, second), "Job");
+
+        assertSame(job, mirror.getJobRecord());
+        assertEquals(2, mirror.getChildren(job.getId()).size());
+        assertEquals(5, mirror.getLastChangeId());
+    }
+
+    @Test
+    public void changeIdNeverGoesBack() {
+        TimelineMirror mirror = TimelineMirror.forTimeline(timelineId);
+        mirror.update(Collections.singletonList(record(UUID.randomUUID(), null, "Task", 7)), "Job");
+        mirror.update(Collections.singletonList(record(UUID.randomUUID(), null, "Task", 4)), "Job");
+
+        assertEquals(7, mirror.getLastChangeId());
+    }
+
+    private static TimelineRecord record(UUID id, UUID parentId, String type, int changeId) {
+        TimelineRecord record = new TimelineRecord();
+        record.setId(id);
+        record.setParentId(parentId);
+        record.setType(type);
+        record.setChangeId(changeId);
+        return record;
+    }
+}